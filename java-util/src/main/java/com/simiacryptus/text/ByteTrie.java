@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2018 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.text;
+
+import com.simiacryptus.util.binary.Bits;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * A trie over the UTF-8 bytes of its documents rather than their chars, for models of mostly-ASCII text: the alphabet
+ * has 256 symbols, and characters the model has never seen are escaped as 8-bit literals instead of 16-bit ones.
+ * <p>
+ * Each byte is carried through the char trie engine as the char of the same value. NUL is written as the two bytes
+ * C0 80, as in modified UTF-8, so no byte is zero and END_OF_STRING keeps its meaning; since standard UTF-8 never
+ * produces C0, well-formed text round-trips losslessly. ASCII text is indexed exactly as a char trie would index it.
+ * <p>
+ * Children of the root and of its children, which every walk passes through, are found in 256-entry tables rather
+ * than by binary search.
+ */
+public class ByteTrie {
+  
+  private static final int ALPHABET = 256;
+  
+  private final CharTrie trie;
+  private final int[] rootTable;
+  private final int[][] childTables = new int[ALPHABET][];
+  
+  /**
+   * Instantiates a new Byte trie.
+   *
+   * @param trie a char trie over byte chars
+   */
+  public ByteTrie(CharTrie trie) {
+    this.trie = trie;
+    this.rootTable = table(0);
+    for (int token = 0; token < ALPHABET; token++) {
+      if (0 <= rootTable[token]) childTables[token] = table(rootTable[token]);
+    }
+  }
+  
+  /**
+   * Indexes documents as UTF-8 bytes.
+   *
+   * @param documents the documents
+   * @param maxLevels the max levels, in bytes
+   * @param minWeight the min weight
+   * @return the byte trie
+   */
+  public static ByteTrie index(Collection<String> documents, int maxLevels, int minWeight) {
+    List<String> encoded = documents.stream().map(ByteTrie::toBytes).collect(Collectors.toList());
+    return new ByteTrie(CharTrieIndex.indexFulltext(encoded, maxLevels, minWeight));
+  }
+  
+  /**
+   * Encodes text as a string of byte chars.
+   *
+   * @param text the text
+   * @return the byte chars
+   */
+  public static String toBytes(String text) {
+    byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+    StringBuilder builder = new StringBuilder(bytes.length);
+    for (byte b : bytes) {
+      if (0 == b) builder.append((char) 0xC0).append((char) 0x80);
+      else builder.append((char) (b & 0xFF));
+    }
+    return builder.toString();
+  }
+  
+  /**
+   * Decodes a string of byte chars.
+   *
+   * @param chars the byte chars
+   * @return the text
+   */
+  public static String fromBytes(String chars) {
+    byte[] bytes = new byte[chars.length()];
+    int length = 0;
+    for (int i = 0; i < chars.length(); i++) {
+      char c = chars.charAt(i);
+      if (c >= ALPHABET) throw new IllegalArgumentException("Not a byte char: " + (int) c);
+      if (0xC0 == c && i + 1 < chars.length() && 0x80 == chars.charAt(i + 1)) {
+        bytes[length++] = 0;
+        i++;
+      }
+      else {
+        bytes[length++] = (byte) c;
+      }
+    }
+    return new String(bytes, 0, length, StandardCharsets.UTF_8);
+  }
+  
+  /**
+   * Gets trie.
+   *
+   * @return the char trie
+   */
+  public CharTrie getTrie() {
+    return trie;
+  }
+  
+  /**
+   * Locates the node for the longest prefix of a text's bytes in the trie, as CharTrie.traverse.
+   *
+   * @param text the text
+   * @return the trie node
+   */
+  public TrieNode traverse(String text) {
+    return traverseBytes(toBytes(text), false);
+  }
+  
+  /**
+   * Counts the occurrences of a text.
+   *
+   * @param text the text
+   * @return the count, zero if the text is not in the trie
+   */
+  public long getCount(String text) {
+    TrieNode node = traverseBytes(toBytes(text), true);
+    return null == node ? 0 : node.getCursorCount();
+  }
+  
+  /**
+   * Gets a new codec writing 8-bit literals; its metrics accumulate in the trie's.
+   *
+   * @return the codec
+   */
+  public NodewalkerCodec getCodec() {
+    return trie.getCodec().setLiteralBits(8);
+  }
+  
+  /**
+   * Encodes text with an 8-bit-literal codec.
+   *
+   * @param text    the text
+   * @param context the context, in bytes
+   * @return the bits
+   */
+  public Bits encodePPM(String text, int context) {
+    return getCodec().encodePPM(toBytes(text), context);
+  }
+  
+  /**
+   * Decodes text written by encodePPM.
+   *
+   * @param data    the data
+   * @param context the context, in bytes
+   * @return the text
+   */
+  public String decodePPM(byte[] data, int context) {
+    return fromBytes(getCodec().decodePPM(data, context));
+  }
+  
+  /**
+   * Walks byte chars from the root, through the lookup tables for the first two.
+   *
+   * @param exact whether to return null rather than stop short
+   */
+  private TrieNode traverseBytes(String bytes, boolean exact) {
+    TrieNode node = trie.root();
+    int[] table = rootTable;
+    for (int i = 0; i < bytes.length(); i++) {
+      char token = bytes.charAt(i);
+      int child;
+      if (null != table) {
+        child = table[token];
+      }
+      else {
+        child = node.getChild(token).map(x -> x.index).orElse(-1);
+      }
+      if (child < 0) return exact ? null : node;
+      node = new TrieNode(trie, child, node);
+      table = 0 == i ? childTables[token] : null;
+    }
+    return node;
+  }
+  
+  /**
+   * Maps each byte char to a node's child, or -1.
+   */
+  private int[] table(int node) {
+    int[] table = new int[ALPHABET];
+    Arrays.fill(table, -1);
+    NodeData data = trie.nodes.get(node);
+    for (int child = data.firstChildIndex; 0 <= data.firstChildIndex && child < data.firstChildIndex + data.numberOfChildren; child++) {
+      char token = trie.nodes.get(child).token;
+      if (token < ALPHABET) table[token] = child;
+    }
+    return table;
+  }
+}
@@ -19,15 +19,15 @@
 
 package com.simiacryptus.text;
 
-import com.google.common.collect.Iterators;
+import com.simiacryptus.util.MonitoredItem;
 import com.simiacryptus.util.data.SerialArrayList;
 
 import java.util.*;
 import java.util.function.BiFunction;
 import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
-import java.util.stream.StreamSupport;
 
 import static com.simiacryptus.text.NodewalkerCodec.*;
 
@@ -36,7 +36,7 @@ import static com.simiacryptus.text.NodewalkerCodec.*;
  * markov chains. This implementation uses serialized fixed-length ephemeral objects and a raw byte data store,
  * preventing object/reference count overhead.
  */
-public class CharTrie {
+public class CharTrie implements MonitoredItem {
   /**
    * The Nodes.
    */
@@ -49,6 +49,11 @@ public class CharTrie {
    * The Godparent index.
    */
   protected int[] godparentIndex = null;
+  /**
+   * The counters shared by every codec of this trie, for strings encoded and decoded.
+   */
+  private final CodecMetrics encodeMetrics = new CodecMetrics();
+  private final CodecMetrics decodeMetrics = new CodecMetrics();
   
   /**
    * Instantiates a new Char trie.
@@ -235,21 +240,7 @@ public class CharTrie {
    * @return the char trie
    */
   public CharTrie reduceSimple(CharTrie z, BiFunction<Long, Long, Long> fn) {
-    return reduce(z, (left, right) -> {
-      TreeMap<Character, ? extends TrieNode> leftChildren = null == left ? new TreeMap<>() : left.getChildrenMap();
-      TreeMap<Character, ? extends TrieNode> rightChildren = null == right ? new TreeMap<>() : right.getChildrenMap();
-      Map<Character, Long> map = Stream.of(rightChildren.keySet(), leftChildren.keySet()).flatMap(x -> x.stream()).distinct().collect(Collectors.toMap(c -> c, (Character c) -> {
-        assert (null != leftChildren);
-        assert (null != rightChildren);
-        assert (null != c);
-        TrieNode leftChild = leftChildren.get(c);
-        Long l = null == leftChild ? null : leftChild.getCursorCount();
-        TrieNode rightChild = rightChildren.get(c);
-        Long r = null == rightChild ? null : rightChild.getCursorCount();
-        return fn.apply(l, r);
-      }));
-      return new TreeMap<>(map);
-    });
+    return new TrieReducer(this, z, fn).reduce().recomputeCursorDetails();
   }
   
   /**
@@ -266,42 +257,127 @@ public class CharTrie {
   }
   
   /**
-   * Recompute cursor details char trie.
+   * Recompute cursor details char trie. Counts are summed bottom-up and cursor positions assigned top-down, each
+   * subtree under the root being walked iteratively in depth-first order and in parallel with the others.
    *
    * @return the char trie
    */
   CharTrie recomputeCursorDetails() {
-    godparentIndex = new int[getNodeCount()];
-    parentIndex = new int[getNodeCount()];
+    int nodeCount = getNodeCount();
+    godparentIndex = new int[nodeCount];
+    parentIndex = new int[nodeCount];
     Arrays.fill(godparentIndex, 0, godparentIndex.length, -1);
     Arrays.fill(parentIndex, 0, parentIndex.length, -1);
-    System.gc();
-    recomputeCursorTotals(root());
-    System.gc();
-    recomputeCursorPositions(root(), 0);
-    System.gc();
+    long[] counts = new long[nodeCount];
+    long[] positions = new long[nodeCount];
+    int[] firstChild = new int[nodeCount];
+    short[] numberOfChildren = new short[nodeCount];
+    readNode(0, counts, firstChild, numberOfChildren);
+    List<int[]> subtrees = IntStream.range(firstChild[0], firstChild[0] + numberOfChildren[0]).parallel().mapToObj(child -> {
+      parentIndex[child] = 0;
+      int[] order = depthFirstOrder(child, counts, firstChild, numberOfChildren);
+      for (int i = order.length - 1; i >= 0; i--) {
+        recomputeCursorTotal(order[i], counts, firstChild, numberOfChildren);
+      }
+      return order;
+    }).collect(Collectors.toList());
+    recomputeCursorTotal(0, counts, firstChild, numberOfChildren);
+    recomputeCursorPositions(0, positions, counts, firstChild, numberOfChildren);
+    writeCursorDetails(0, counts, positions);
+    subtrees.parallelStream().forEach(order -> {
+      for (int node : order) {
+        recomputeCursorPositions(node, positions, counts, firstChild, numberOfChildren);
+        writeCursorDetails(node, counts, positions);
+      }
+    });
     return this;
   }
   
-  private NodeData recomputeCursorTotals(TrieNode node) {
-    parentIndex[node.index] = null == node.getParent() ? -1 : node.getParent().index;
-    List<NodeData> newChildren = node.getChildren().map(child -> recomputeCursorTotals(child)).collect(Collectors.toList());
-    if (newChildren.isEmpty()) return node.getData();
-    long cursorCount = newChildren.stream().mapToLong(n -> n.cursorCount).sum();
+  /**
+   * Resolves every suffix link eagerly, for a trie laid out breadth-first after recomputeCursorDetails. Links are
+   * resolved level by level: the godparent of a node is the like-tokened child of its parent's godparent, falling back
+   * to the root as TrieNode.godparent does.
+   *
+   * @return this char trie
+   */
+  CharTrie recomputeGodparents() {
+    int nodeCount = getNodeCount();
+    for (int node = 1; node < nodeCount; node++) {
+      int parent = parentIndex[node];
+      if (0 == parent) {
+        godparentIndex[node] = 0;
+        continue;
+      }
+      godparentIndex[node] = findChild(nodes.get(godparentIndex[parent]), nodes.get(node).token);
+    }
+    return this;
+  }
+  
+  private int findChild(NodeData parent, char token) {
+    int low = parent.firstChildIndex;
+    int high = parent.firstChildIndex + Math.max(0, parent.numberOfChildren) - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      char midToken = nodes.get(mid).token;
+      if (midToken < token) low = mid + 1;
+      else if (midToken > token) high = mid - 1;
+      else return mid;
+    }
+    return 0;
+  }
+  
+  private void readNode(int node, long[] counts, int[] firstChild, short[] numberOfChildren) {
+    NodeData data = nodes.get(node);
+    counts[node] = data.cursorCount;
+    firstChild[node] = data.firstChildIndex;
+    numberOfChildren[node] = data.firstChildIndex < 0 ? 0 : (short) Math.max(0, data.numberOfChildren);
+  }
+  
+  /**
+   * Lists a subtree's nodes in depth-first order, reading their data and recording their parents along the way.
+   */
+  private int[] depthFirstOrder(int subtreeRoot, long[] counts, int[] firstChild, short[] numberOfChildren) {
+    int[] order = new int[16];
+    int size = 0;
+    int[] stack = new int[16];
+    int depth = 0;
+    stack[depth++] = subtreeRoot;
+    while (depth > 0) {
+      int node = stack[--depth];
+      readNode(node, counts, firstChild, numberOfChildren);
+      if (size == order.length) order = Arrays.copyOf(order, 2 * size);
+      order[size++] = node;
+      for (int child = firstChild[node] + numberOfChildren[node] - 1; child >= firstChild[node]; child--) {
+        parentIndex[child] = node;
+        if (depth == stack.length) stack = Arrays.copyOf(stack, 2 * depth);
+        stack[depth++] = child;
+      }
+    }
+    return Arrays.copyOf(order, size);
+  }
+  
+  private void recomputeCursorTotal(int node, long[] counts, int[] firstChild, short[] numberOfChildren) {
+    if (0 == numberOfChildren[node]) return;
+    long cursorCount = 0;
+    for (int child = firstChild[node]; child < firstChild[node] + numberOfChildren[node]; child++) {
+      cursorCount += counts[child];
+    }
     assert (0 < cursorCount);
-    return node.update(d -> d.setCursorCount(cursorCount));
+    counts[node] = cursorCount;
   }
   
-  private void recomputeCursorPositions(TrieNode node, final int position) {
-    node.update(n -> n.setFirstCursorIndex(position));
-    int childPosition = position;
-    Stream<TrieNode> stream = node.getChildren().map(x -> x);
-    for (TrieNode child : stream.collect(Collectors.toList())) {
-      recomputeCursorPositions(child, childPosition);
-      childPosition += child.getCursorCount();
+  private void recomputeCursorPositions(int node, long[] positions, long[] counts, int[] firstChild, short[] numberOfChildren) {
+    long childPosition = positions[node];
+    for (int child = firstChild[node]; child < firstChild[node] + numberOfChildren[node]; child++) {
+      positions[child] = childPosition;
+      childPosition += counts[child];
     }
   }
   
+  private void writeCursorDetails(int node, long[] counts, long[] positions) {
+    nodes.set(node, nodes.get(node).setCursorCount(counts[node]).setFirstCursorIndex(positions[node]));
+  }
+  
   private void reduceSubtree(TrieNode sourceNodeA, TrieNode sourceNodeB, TrieNode destNode, BiFunction<TrieNode, TrieNode, TreeMap<Character, Long>> fn) {
     destNode.writeChildren(fn.apply(sourceNodeA, sourceNodeB));
     TreeMap<Character, ? extends TrieNode> sourceChildrenA = null == sourceNodeA ? null : sourceNodeA.getChildrenMap();
@@ -403,6 +479,50 @@ public class CharTrie {
     return this.nodes.getMemorySize();
   }
   
+  /**
+   * Reports the trie's structure: node counts and bytes by depth, a histogram of the number of children per node, and
+   * how much of the suffix-link cache has been filled.
+   *
+   * @return the metrics
+   */
+  @Override
+  public Map<String, Object> getMetrics() {
+    HashMap<String, Object> map = new HashMap<>();
+    int nodeCount = getNodeCount();
+    map.put("nodes", nodeCount);
+    map.put("bytes", getMemorySize());
+    map.put("nodeBytes", nodes.getMemorySize());
+    TreeMap<Integer, Map<String, Object>> depths = new TreeMap<>();
+    TreeMap<Integer, Integer> fanout = new TreeMap<>();
+    int[] level = new int[]{0};
+    for (int depth = 0; level.length > 0; depth++) {
+      Map<String, Object> depthMetrics = new HashMap<>();
+      depthMetrics.put("nodes", level.length);
+      depthMetrics.put("bytes", (long) level.length * nodes.unitSize);
+      depths.put(depth, depthMetrics);
+      IntStream.Builder next = IntStream.builder();
+      for (int node : level) {
+        NodeData data = nodes.get(node);
+        int children = data.firstChildIndex < 0 ? 0 : Math.max(0, data.numberOfChildren);
+        fanout.merge(children, 1, Integer::sum);
+        for (int i = 0; i < children; i++) next.add(data.firstChildIndex + i);
+      }
+      level = next.build().toArray();
+    }
+    map.put("depths", depths);
+    map.put("fanout", fanout);
+    HashMap<String, Object> suffixLinks = new HashMap<>();
+    long cached = null == godparentIndex ? 0 : Arrays.stream(godparentIndex).filter(x -> x >= 0).count();
+    suffixLinks.put("cached", cached);
+    suffixLinks.put("fill", 0 == nodeCount ? 0.0 : (double) cached / nodeCount);
+    map.put("suffixLinks", suffixLinks);
+    HashMap<String, Object> codec = new HashMap<>();
+    codec.put("encode", encodeMetrics.getMetrics());
+    codec.put("decode", decodeMetrics.getMetrics());
+    map.put("codec", codec);
+    return map;
+  }
+  
   /**
    * Gets indexed size.
    *
@@ -413,12 +533,13 @@ public class CharTrie {
   }
   
   /**
-   * Gets codec.
+   * Gets a new codec. Codecs do not share configuration, but all the codecs of a trie record into the same counters,
+   * reported under "codec" by getMetrics.
    *
    * @return the codec
    */
   public NodewalkerCodec getCodec() {
-    return new NodewalkerCodec(this);
+    return new NodewalkerCodec(this, encodeMetrics, decodeMetrics);
   }
   
   /**
@@ -493,18 +614,67 @@ public class CharTrie {
    * @return the stream
    */
   public <T extends Comparable<T>> Stream<TrieNode> max(Function<TrieNode, T> fn, int maxResults) {
-    return max(fn, maxResults, root());
-  }
-  
-  private <T extends Comparable<T>> Stream<TrieNode> max(Function<TrieNode, T> fn, int maxResults, TrieNode node) {
-    return StreamSupport.stream(Spliterators.spliteratorUnknownSize(
-      Iterators.mergeSorted(
-        Stream.concat(
-          Stream.of(Stream.of(node)),
-          node.getChildren().map(x -> max(fn, maxResults, x))
-        ).map(x -> x.iterator()).collect(Collectors.toList()),
-        Comparator.comparing(fn).reversed()),
-      Spliterator.ORDERED),
-      false).limit(maxResults).collect(Collectors.toList()).stream();
+    return max(fn, null, maxResults);
+  }
+  
+  /**
+   * Finds the nodes with the greatest values of a function, skipping subtrees that cannot hold a better node than those
+   * already found. For example, the most frequent n-grams are found with fn = count at depth n and bound = count, since
+   * counts never grow with depth.
+   *
+   * @param <T>        the type parameter
+   * @param fn         the fn
+   * @param bound      an upper bound on fn over a node and all of its descendants; null to visit every node
+   * @param maxResults the max results
+   * @return the nodes, greatest value first
+   */
+  public <T extends Comparable<T>> Stream<TrieNode> max(Function<TrieNode, T> fn, Function<TrieNode, T> bound, int maxResults) {
+    return new TopNodeSearch<>(fn, bound, maxResults).search(root()).stream();
+  }
+  
+  /**
+   * Creates a completer answering the most frequent completions of prefixes of this trie.
+   *
+   * @param maxResults the number of completions to return
+   * @param cacheSize  the number of prefixes to cache
+   * @return the prefix completer
+   */
+  public PrefixCompleter completer(int maxResults, int cacheSize) {
+    return new PrefixCompleter(this, maxResults, cacheSize);
+  }
+  
+  /**
+   * Finds the words within an edit distance of a query, such as the candidate corrections of a misspelling. A word is a
+   * string ending in an END_OF_STRING node, or at a leaf of a depth-limited trie.
+   *
+   * @param query    the query
+   * @param maxEdits the max number of insertions, deletions and substitutions
+   * @return the word nodes, most probable first
+   */
+  public List<TrieNode> fuzzyMatch(String query, int maxEdits) {
+    return new FuzzySearch(this, query, maxEdits).search();
+  }
+  
+  /**
+   * Drops the nodes counted fewer than minCount times, folding each node's dropped children into a FALLBACK child, and
+   * lays out the rest breadth-first so that walks from the root stay within the front of the node array. Cursor data
+   * is not carried over.
+   *
+   * @param minCount the min count
+   * @return the compacted char trie
+   */
+  public CharTrie compact(long minCount) {
+    return new TrieCompactor(this).compact(minCount);
+  }
+  
+  /**
+   * Compacts the trie with the smallest count threshold leaving at most maxNodes nodes; see compact(long).
+   *
+   * @param maxNodes the max nodes
+   * @return the compacted char trie
+   */
+  public CharTrie compactToSize(int maxNodes) {
+    TrieCompactor compactor = new TrieCompactor(this);
+    return compactor.compact(compactor.thresholdFor(maxNodes));
   }
 }
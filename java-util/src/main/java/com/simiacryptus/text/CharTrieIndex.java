@@ -21,12 +21,13 @@ package com.simiacryptus.text;
 
 import com.simiacryptus.util.data.SerialArrayList;
 
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 /**
  * The type Char trie index.
@@ -40,13 +41,57 @@ public class CharTrieIndex extends CharTrie {
   /**
    * The Documents.
    */
-  protected final ArrayList<String> documents;
+  protected final CorpusStore documents;
+  /**
+   * Whether cursors read their documents backward, from the end of each document toward its start.
+   */
+  protected final boolean reversed;
+  /**
+   * The ids of documents added with addDictionary, which carry a single cursor rather than one per position.
+   */
+  protected final BitSet dictionaryEntries;
+  /**
+   * The weight of each document, by document id; null while every document weighs one, and documents beyond its
+   * length weigh one.
+   */
+  protected int[] documentWeights;
+  /**
+   * The total weight of all cursors beyond one apiece.
+   */
+  private final AtomicLong excessWeight;
+  /**
+   * The total weight of the cursors before each cursor slot, plus a trailing total. Node cursor ranges count cursor
+   * weight, so that a weighted cursor stands for as many duplicate cursors; this maps them back to cursor slots. Null
+   * while every cursor weighs one, when ranges and slots coincide.
+   */
+  protected CursorOffsets cursorOffsets;
+  /**
+   * The number of distinct documents under each node; null until the index is built.
+   */
+  protected int[] documentFrequency;
+  /**
+   * The offset of each node's posting list within the postings buffer, plus a trailing end offset.
+   */
+  protected int[] postingOffsets;
+  /**
+   * The compressed document-id posting lists of all nodes, concatenated in node order.
+   */
+  protected byte[] postings;
+  /**
+   * The wall time, nodes split and cursors moved at each depth of the last index build; copy-on-write, so a monitor may
+   * read it while a build appends to it.
+   */
+  private final List<Map<String, Object>> buildMetrics = new CopyOnWriteArrayList<>();
   
   private CharTrieIndex(SerialArrayList<NodeData> nodes, SerialArrayList<CursorData> cursors,
-    ArrayList<String> documents) {
+    CorpusStore documents, boolean reversed, BitSet dictionaryEntries, int[] documentWeights, long excessWeight) {
     super(nodes);
     this.cursors = cursors;
     this.documents = documents;
+    this.reversed = reversed;
+    this.dictionaryEntries = dictionaryEntries;
+    this.documentWeights = documentWeights;
+    this.excessWeight = new AtomicLong(excessWeight);
   }
   
   /**
@@ -55,15 +100,32 @@ public class CharTrieIndex extends CharTrie {
    * @param copyFrom the copy from
    */
   public CharTrieIndex(CharTrieIndex copyFrom) {
-    this(copyFrom.nodes.copy(), copyFrom.cursors.copy(), new ArrayList<>(copyFrom.documents));
-    
+    this(copyFrom.nodes.copy(), copyFrom.cursors.copy(), copyFrom.documents.copy(), copyFrom.reversed, (BitSet) copyFrom.dictionaryEntries.clone(),
+      null == copyFrom.documentWeights ? null : copyFrom.documentWeights.clone(), copyFrom.excessWeight.get());
+    this.cursorOffsets = null == copyFrom.cursorOffsets ? null : copyFrom.cursorOffsets.copy();
+    this.documentFrequency = copyFrom.documentFrequency;
+    this.postingOffsets = copyFrom.postingOffsets;
+    this.postings = copyFrom.postings;
   }
   
   /**
    * Instantiates a new Char trie index.
    */
   public CharTrieIndex() {
-    this(new SerialArrayList<>(NodeType.INSTANCE, new NodeData(NodewalkerCodec.END_OF_STRING, (short) -1, -1, -1, 0)), new SerialArrayList<>(CursorType.INSTANCE), new ArrayList<>());
+    this(false);
+  }
+  
+  /**
+   * Instantiates a new Char trie index.
+   *
+   * @param offHeap whether to hold the document text in direct (off-heap) memory
+   */
+  public CharTrieIndex(boolean offHeap) {
+    this(newRoot(), new SerialArrayList<>(CursorType.INSTANCE), new CorpusStore(offHeap), false, new BitSet(), null, 0);
+  }
+  
+  private static SerialArrayList<NodeData> newRoot() {
+    return new SerialArrayList<>(NodeType.INSTANCE, new NodeData(NodewalkerCodec.END_OF_STRING, (short) -1, -1, -1, 0));
   }
   
   /**
@@ -119,12 +181,43 @@ public class CharTrieIndex extends CharTrie {
   
   @Override
   public int getMemorySize() {
-    return cursors.getMemorySize() + nodes.getMemorySize();
+    int postingSize = getPostingSize();
+    int offsetSize = null == cursorOffsets ? 0 : cursorOffsets.getMemorySize();
+    return cursors.getMemorySize() + nodes.getMemorySize() + postingSize + offsetSize;
+  }
+  
+  /**
+   * Reports the trie's structure, plus the space held by cursors, documents and posting lists, and the per-depth
+   * timings of the last index build.
+   *
+   * @return the metrics
+   */
+  @Override
+  public Map<String, Object> getMetrics() {
+    Map<String, Object> map = super.getMetrics();
+    map.put("cursors", cursors.length());
+    map.put("cursorBytes", cursors.getMemorySize());
+    map.put("documents", documents.size());
+    map.put("documentChars", documents.getTextLength());
+    map.put("postingBytes", getPostingSize());
+    map.put("build", new ArrayList<>(buildMetrics));
+    return map;
+  }
+  
+  private int getPostingSize() {
+    return null == postings ? 0 : postings.length + 4 * (documentFrequency.length + postingOffsets.length);
   }
   
   @Override
   public long getIndexedSize() {
-    return documents.isEmpty() ? super.getIndexedSize() : documents.stream().mapToInt(doc -> doc.length()).sum();
+    if (documents.isEmpty()) return super.getIndexedSize();
+    long size = documents.getTextLength();
+    if (null != documentWeights) {
+      for (int id = 0; id < Math.min(documentWeights.length, documents.size()); id++) {
+        size += (long) (documentWeights[id] - 1) * documents.length(id);
+      }
+    }
+    return size;
   }
   
   /**
@@ -166,11 +259,17 @@ public class CharTrieIndex extends CharTrie {
   public CharTrieIndex index(int maxLevels, int minWeight) {
     
     AtomicInteger numberSplit = new AtomicInteger(0);
+    AtomicLong cursorsMoved = new AtomicLong(0);
+    buildMetrics.clear();
     int depth = -1;
     do {
       numberSplit.set(0);
+      cursorsMoved.set(0);
+      long startTime = System.nanoTime();
       if (0 == ++depth) {
+        if (null != documentWeights) weighCursors();
         numberSplit.incrementAndGet();
+        cursorsMoved.addAndGet(root().getCursorCount());
         root().split();
       }
       else {
@@ -181,15 +280,175 @@ public class CharTrieIndex extends CharTrie {
               if (node.getChar() != NodewalkerCodec.END_OF_STRING || node.getDepth() == 0) {
                 ((IndexNode) node).split();
                 numberSplit.incrementAndGet();
+                cursorsMoved.addAndGet(node.getCursorCount());
               }
             }
           }
         });
       }
+      double seconds = (System.nanoTime() - startTime) / 1e9;
+      Map<String, Object> depthMetrics = new HashMap<>();
+      depthMetrics.put("depth", depth);
+      depthMetrics.put("seconds", seconds);
+      depthMetrics.put("nodesSplit", numberSplit.get());
+      depthMetrics.put("cursorsMoved", cursorsMoved.get());
+      depthMetrics.put("cursorsPerSecond", cursorsMoved.get() / Math.max(seconds, 1e-9));
+      buildMetrics.add(depthMetrics);
     } while (numberSplit.get() > 0);
+    indexDocuments();
     return this;
   }
   
+  /**
+   * Creates an unindexed index over the same documents that reads each of them backward, so that once indexed its
+   * trie counts the reversed strings of this one. The corpus is shared rather than copied, and the cursors are laid
+   * down in a single pass over the documents; unlike CharTrie.reverse, no existing tree is traversed. Documents must
+   * not be added to either index afterwards.
+   *
+   * @return the char trie index
+   */
+  public CharTrieIndex reversed() {
+    int[] starts = new int[documents.size() + 1];
+    for (int id = 0; id < documents.size(); id++) {
+      starts[id + 1] = starts[id] + (dictionaryEntries.get(id) ? 1 : documents.length(id) + 1);
+    }
+    SerialArrayList<CursorData> reversedCursors = new SerialArrayList<>(CursorType.INSTANCE, starts[documents.size()]);
+    CharTrieIndex result = new CharTrieIndex(newRoot(), reversedCursors, documents, !reversed, dictionaryEntries,
+      documentWeights, excessWeight.get());
+    IntStream.range(0, documents.size()).parallel().forEach(id -> {
+      int[] positions = result.cursorPositions(documents.offset(id), documents.length(id), dictionaryEntries.get(id));
+      for (int i = 0; i < positions.length; i++) {
+        reversedCursors.set(starts[id] + i, new CursorData(positions[i]));
+      }
+    });
+    result.nodes.update(0, node -> node.setCursorCount(reversedCursors.length() + result.excessWeight.get()));
+    return result;
+  }
+  
+  /**
+   * Indexes the documents in both directions at once: this index, and the reversed index over the same corpus.
+   *
+   * @param maxLevels the max levels
+   * @param minWeight the min weight
+   * @return the indexed reversed index
+   */
+  public CharTrieIndex indexBidirectional(int maxLevels, int minWeight) {
+    CharTrieIndex reversed = reversed();
+    Stream.of(this, reversed).parallel().forEach(trie -> trie.index(maxLevels, minWeight));
+    return reversed;
+  }
+  
+  /**
+   * Is reversed boolean.
+   *
+   * @return whether cursors read their documents backward
+   */
+  public boolean isReversed() {
+    return reversed;
+  }
+  
+  /**
+   * The character read by a cursor at a given depth. Every document is bounded on both sides by an END_OF_STRING
+   * sentinel, so reading in either direction stops at the document's edge.
+   */
+  char charAt(int position, int depth) {
+    return documents.charAt(reversed ? position - depth + 1 : position + depth - 1);
+  }
+  
+  /**
+   * The document a cursor reads. A reversed cursor starting on the sentinel before a document belongs to that
+   * document.
+   */
+  int documentAt(int position) {
+    return documents.documentAt(reversed ? position + 1 : position);
+  }
+  
+  /**
+   * The cursor positions for a document: one per character plus one at its terminating sentinel, or a single cursor
+   * at its first character for a dictionary entry. Reversed cursors are mirrored, starting from the document's end.
+   */
+  private int[] cursorPositions(int start, int length, boolean dictionary) {
+    if (dictionary) return new int[]{reversed ? start + length - 1 : start};
+    return IntStream.range(0, length + 1).map(i -> reversed ? start + length - 1 - i : start + i).toArray();
+  }
+  
+  /**
+   * Records the distinct documents under every node as a compressed posting list, so document frequency and
+   * containment queries do not need to scan cursors.
+   */
+  private void indexDocuments() {
+    int nodeCount = nodes.length();
+    int[] frequency = new int[nodeCount];
+    byte[][] encoded = new byte[nodeCount][];
+    IntStream.range(0, nodeCount).parallel().forEach(node -> {
+      NodeData data = nodes.get(node);
+      int firstSlot = cursorSlot(data.firstCursorIndex);
+      int[] ids = new int[Math.max(0, cursorSlot(data.firstCursorIndex + Math.max(0, data.cursorCount)) - firstSlot)];
+      for (int i = 0; i < ids.length; i++) {
+        ids[i] = documentAt(cursors.get(firstSlot + i).position);
+      }
+      frequency[node] = DocumentPostings.distinct(ids);
+      encoded[node] = DocumentPostings.encode(ids, frequency[node]);
+    });
+    int[] offsets = new int[nodeCount + 1];
+    for (int node = 0; node < nodeCount; node++) {
+      offsets[node + 1] = offsets[node] + encoded[node].length;
+    }
+    byte[] buffer = new byte[offsets[nodeCount]];
+    for (int node = 0; node < nodeCount; node++) {
+      System.arraycopy(encoded[node], 0, buffer, offsets[node], encoded[node].length);
+    }
+    documentFrequency = frequency;
+    postingOffsets = offsets;
+    postings = buffer;
+  }
+  
+  /**
+   * The weight of a document.
+   */
+  int documentWeight(int documentId) {
+    int[] weights = documentWeights;
+    return null == weights || documentId >= weights.length ? 1 : weights[documentId];
+  }
+  
+  /**
+   * Tabulates the cumulative cursor weights in the current cursor order. A document's cursors are added together, so
+   * the document is only looked up when a cursor leaves the span of the one before it.
+   */
+  private synchronized void weighCursors() {
+    int cursorCount = cursors.length();
+    CursorOffsets offsets = new CursorOffsets(cursorCount + 1, cursorCount + excessWeight.get());
+    int spanStart = 0;
+    int spanEnd = 0;
+    int weight = 1;
+    long offset = 0;
+    for (int i = 0; i < cursorCount; i++) {
+      // A reversed cursor may start on the sentinel before its document
+      int position = reversed ? cursors.get(i).position + 1 : cursors.get(i).position;
+      if (position < spanStart || position >= spanEnd) {
+        int documentId = documents.documentAt(position);
+        spanStart = documents.offset(documentId);
+        spanEnd = spanStart + documents.length(documentId) + 1;
+        weight = documentWeight(documentId);
+      }
+      offset += weight;
+      offsets.set(i + 1, offset);
+    }
+    cursorOffsets = offsets;
+  }
+  
+  /**
+   * The cursor slot at which a node's cursor range begins or ends. Range bounds always fall between cursors, so the
+   * search is exact.
+   */
+  int cursorSlot(long cursorIndex) {
+    if (null == documentWeights) return (int) cursorIndex;
+    if (null == cursorOffsets) weighCursors();
+    int slot = cursorOffsets.search(cursorIndex);
+    if (slot < 0) throw new IllegalStateException("Cursor index does not fall between cursors: " + cursorIndex);
+    return slot;
+  }
+  
   /**
    * Adds a document to be indexed. This can only be performed before splitting.
    *
@@ -197,18 +456,20 @@ public class CharTrieIndex extends CharTrie {
    * @return this int
    */
   public int addDictionary(String document) {
-    if (root().getNumberOfChildren() >= 0) {
-      throw new IllegalStateException("Tree sorting has begun");
-    }
-    final int index;
-    synchronized (this) {
-      index = documents.size();
-      documents.add(document);
-    }
-    cursors.addAll(
-      IntStream.range(0, 1).mapToObj(i -> new CursorData(index, i)).collect(Collectors.toList()));
-    nodes.update(0, node -> node.setCursorCount(cursors.length()));
-    return index;
+    return addDictionary(document, 1);
+  }
+  
+  /**
+   * Adds a document to be indexed as if it were added weight times, under a single cursor carrying the weight. A
+   * dictionary of distinct words with their frequencies is indexed in space proportional to the distinct words, with
+   * the same counts as indexing every occurrence. This can only be performed before splitting.
+   *
+   * @param document the document
+   * @param weight   the number of occurrences
+   * @return this int
+   */
+  public int addDictionary(String document, int weight) {
+    return add(document, weight, true);
   }
   
   /**
@@ -218,17 +479,49 @@ public class CharTrieIndex extends CharTrie {
    * @return this int
    */
   public int addDocument(String document) {
+    return addDocument(document, 1);
+  }
+  
+  /**
+   * Adds a document to be indexed as if it were added weight times; its cursors each carry the weight. This can only
+   * be performed before splitting.
+   *
+   * @param document the document
+   * @param weight   the number of occurrences
+   * @return this int
+   */
+  public int addDocument(String document, int weight) {
+    return add(document, weight, false);
+  }
+  
+  private int add(String document, int weight, boolean dictionary) {
+    if (weight < 1) {
+      throw new IllegalArgumentException("Weight must be positive: " + weight);
+    }
     if (root().getNumberOfChildren() >= 0) {
       throw new IllegalStateException("Tree sorting has begun");
     }
     final int index;
+    final int start;
     synchronized (this) {
       index = documents.size();
-      documents.add(document);
+      start = documents.add(document);
+      if (dictionary) dictionaryEntries.set(index);
+      if (1 != weight) {
+        if (null == documentWeights || index >= documentWeights.length) {
+          int length = Math.max(index + 1, null == documentWeights ? 16 : 2 * documentWeights.length);
+          int[] weights = null == documentWeights ? new int[length] : Arrays.copyOf(documentWeights, length);
+          Arrays.fill(weights, null == documentWeights ? 0 : documentWeights.length, length, 1);
+          documentWeights = weights;
+        }
+        documentWeights[index] = weight;
+        cursorOffsets = null;
+      }
     }
-    cursors.addAll(
-      IntStream.range(0, document.length() + 1).mapToObj(i -> new CursorData(index, i)).collect(Collectors.toList()));
-    nodes.update(0, node -> node.setCursorCount(cursors.length()));
+    int[] positions = cursorPositions(start, document.length(), dictionary);
+    excessWeight.addAndGet((long) (weight - 1) * positions.length);
+    cursors.addAll(IntStream.of(positions).mapToObj(CursorData::new).collect(Collectors.toList()));
+    nodes.update(0, node -> node.setCursorCount(cursors.length() + excessWeight.get()));
     return index;
   }
   
@@ -21,9 +21,11 @@ package com.simiacryptus.text;
 
 import java.io.PrintStream;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 import java.util.function.Function;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.stream.IntStream;
 
 /**
  * The type Classification tree.
@@ -37,6 +39,17 @@ public class ClassificationTree {
   private final int smoothing = 3;
   private PrintStream verbose = null;
   
+  /**
+   * Trains a categorization tree and compiles it into a single-pass classifier.
+   *
+   * @param categories the categories
+   * @param depth      the depth
+   * @return the compiled classifier
+   */
+  public CompiledClassifier compiledTree(Map<String, List<String>> categories, int depth) {
+    return CompiledClassifier.compile(categorizationTree(categories, depth));
+  }
+  
   /**
    * Categorization tree function.
    *
@@ -45,85 +58,28 @@ public class ClassificationTree {
    * @return the function
    */
   public Function<String, Map<String, Double>> categorizationTree(Map<String, List<String>> categories, int depth) {
-    return categorizationTree(categories, depth, "");
-  }
-  
-  private Function<String, Map<String, Double>> categorizationTree(Map<String, List<String>> categories, int depth, String indent) {
-    if (0 == depth) {
-      return str -> {
-        int sum = categories.values().stream().mapToInt(x -> x.size()).sum();
-        return categories.entrySet().stream().collect(Collectors.toMap(e -> e.getKey(), e -> e.getValue().size() * 1.0 / sum));
-      };
-    }
-    else {
-      if (1 >= categories.values().stream().filter(x -> !x.isEmpty()).count()) {
-        return categorizationTree(categories, 0, indent);
-      }
-      Optional<NodeInfo> info = categorizationSubstring(categories.values());
-      if (!info.isPresent()) return categorizationTree(categories, 0, indent);
-      String split = info.get().node.getString();
-      Map<String, List<String>> lSet = categories.entrySet().stream().collect(
-        Collectors.toMap(e -> e.getKey(), e -> e.getValue().stream().filter(str -> str.contains(split))
-          .collect(Collectors.toList())));
-      Map<String, List<String>> rSet = categories.entrySet().stream().collect(
-        Collectors.toMap(e -> e.getKey(), e -> e.getValue().stream().filter(str -> !str.contains(split))
-          .collect(Collectors.toList())));
-      int lSum = lSet.values().stream().mapToInt(x -> x.size()).sum();
-      int rSum = rSet.values().stream().mapToInt(x -> x.size()).sum();
-      if (0 == lSum || 0 == rSum) {
-        return categorizationTree(categories, 0, indent);
-      }
-      if (null != verbose) {
-        verbose.println(String.format(indent + "\"%s\" -> Contains=%s\tAbsent=%s\tEntropy=%5f", split,
-          lSet.entrySet().stream().collect(Collectors.toMap(e -> e.getKey(), e -> e.getValue().size())),
-          rSet.entrySet().stream().collect(Collectors.toMap(e -> e.getKey(), e -> e.getValue().size())),
-          info.get().entropy));
-      }
-      Function<String, Map<String, Double>> l = categorizationTree(lSet, depth - 1, indent + "  ");
-      Function<String, Map<String, Double>> r = categorizationTree(rSet, depth - 1, indent + "  ");
-      return str -> {
-        if (str.contains(split)) {
-          return l.apply(str);
-        }
-        else {
-          return r.apply(str);
-        }
-      };
-    }
+    Corpus corpus = new Corpus(categories);
+    BitSet all = new BitSet(corpus.documentCount);
+    all.set(0, corpus.documentCount);
+    return ForkJoinPool.commonPool().invoke(new TrainingTask(corpus, all, depth, ""));
   }
   
-  private double entropy(Map<Integer, Long> sum, Map<Integer, Long> left) {
-    double sumSum = sum.values().stream().mapToDouble(x -> x).sum();
-    double leftSum = left.values().stream().mapToDouble(x -> x).sum();
+  private double entropy(long[] sum, long[] left) {
+    double sumSum = Arrays.stream(sum).sum();
+    double leftSum = Arrays.stream(left).sum();
     double rightSum = sumSum - leftSum;
-    //System.err.println(String.format("%s & %s", sum, left));
     if (rightSum < minLeafWeight) return Double.NEGATIVE_INFINITY;
     if (leftSum < minLeafWeight) return Double.NEGATIVE_INFINITY;
-    return (sum.keySet().stream().mapToDouble(category -> {
-      Long leftCnt = left.getOrDefault(category, 0l);
-      return leftCnt * Math.log((leftCnt + smoothing) * 1.0 / (leftSum + smoothing * sum.size()));
-    }).sum() +
-      sum.keySet().stream().mapToDouble(category -> {
-        Long rightCnt = sum.getOrDefault(category, 0l) - left.getOrDefault(category, 0l);
-        return rightCnt * Math.log((rightCnt + smoothing) * 1.0 / (rightSum + smoothing * sum.size()));
-      }).sum()) / (sumSum * Math.log(2));
-  }
-  
-  private Optional<NodeInfo> categorizationSubstring(Collection<List<String>> categories) {
-    CharTrieIndex trie = new CharTrieIndex();
-    Map<Integer, Integer> categoryMap = new TreeMap<>();
-    int categoryNumber = 0;
-    Map<Integer, Long> sum = new HashMap<>();
-    for (List<String> category : categories) {
-      categoryNumber += 1;
-      for (String text : category) {
-        sum.put(categoryNumber, sum.getOrDefault(categoryNumber, 0l) + text.length() + 1);
-        categoryMap.put(trie.addDocument(text), categoryNumber);
-      }
+    long categoryCount = Arrays.stream(sum).filter(x -> x > 0).count();
+    double entropy = 0;
+    for (int category = 0; category < sum.length; category++) {
+      if (0 == sum[category]) continue;
+      long leftCnt = left[category];
+      long rightCnt = sum[category] - leftCnt;
+      entropy += leftCnt * Math.log((leftCnt + smoothing) * 1.0 / (leftSum + smoothing * categoryCount));
+      entropy += rightCnt * Math.log((rightCnt + smoothing) * 1.0 / (rightSum + smoothing * categoryCount));
     }
-    trie.index(maxLevels, minWeight);
-    sum = summarize(trie.root(), categoryMap);
-    return categorizationSubstring(trie.root(), categoryMap, sum);
+    return entropy / (sumSum * Math.log(2));
   }
   
   /**
@@ -146,27 +102,169 @@ public class ClassificationTree {
     return this;
   }
   
-  private NodeInfo info(IndexNode node, Map<Integer, Long> sum, Map<Integer, Integer> categoryMap) {
-    Map<Integer, Long> summary = summarize(node, categoryMap);
-    return new NodeInfo(node, summary, entropy(sum, summary));
+  private Optional<NodeInfo> categorizationSubstring(Corpus corpus, IndexNode node, BitSet mask, long[] sum) {
+    BitSet documents = corpus.nodeDocuments[node.index];
+    if (null == documents) return Optional.empty();
+    long[] summary = corpus.histogram(documents, mask);
+    // Document sets only shrink with depth, so a subtree whose root is too small for a leaf can be skipped
+    if (Arrays.stream(summary).sum() < minLeafWeight) return Optional.empty();
+    NodeInfo best = null;
+    if (0 < node.getDepth() && node.getChar() != NodewalkerCodec.END_OF_STRING) {
+      NodeInfo info = new NodeInfo(node, documents, entropy(sum, summary));
+      if (Double.isFinite(info.entropy)) best = info;
+    }
+    for (IndexNode child : node.getChildren().collect(Collectors.toList())) {
+      Optional<NodeInfo> childInfo = categorizationSubstring(corpus, child, mask, sum);
+      if (childInfo.isPresent() && (null == best || childInfo.get().entropy > best.entropy)) best = childInfo.get();
+    }
+    return Optional.ofNullable(best);
   }
   
-  private Map<Integer, Long> summarize(IndexNode node, Map<Integer, Integer> categoryMap) {
-    return node.getCursors().map(x -> x.getDocumentId())
-      .distinct()
-      .map(x -> categoryMap.get(x))
-      .collect(Collectors.toList()).stream()
-      .collect(Collectors.groupingBy(x -> x, Collectors.counting()));
+  /**
+   * A single index over every training document, with the distinct documents under each candidate node kept as a
+   * bitset so that subsets can be scored by masking rather than re-indexing.
+   */
+  private class Corpus {
+    /**
+     * The Category names.
+     */
+    final List<String> categoryNames;
+    /**
+     * The Category documents.
+     */
+    final BitSet[] categoryDocuments;
+    /**
+     * The Document count.
+     */
+    final int documentCount;
+    /**
+     * The Trie.
+     */
+    final CharTrieIndex trie = new CharTrieIndex();
+    /**
+     * The Node documents, indexed by node; null for nodes containing too few documents to ever form a leaf.
+     */
+    final BitSet[] nodeDocuments;
+    
+    /**
+     * Instantiates a new Corpus.
+     *
+     * @param categories the categories
+     */
+    Corpus(Map<String, List<String>> categories) {
+      categoryNames = new ArrayList<>(categories.keySet());
+      categoryDocuments = new BitSet[categoryNames.size()];
+      for (int category = 0; category < categoryNames.size(); category++) {
+        categoryDocuments[category] = new BitSet();
+        for (String text : categories.get(categoryNames.get(category))) {
+          categoryDocuments[category].set(trie.addDocument(text));
+        }
+      }
+      documentCount = trie.documents.size();
+      trie.index(maxLevels, minWeight);
+      nodeDocuments = new BitSet[trie.getNodeCount()];
+      IntStream.range(0, nodeDocuments.length).parallel().forEach(index -> {
+        IndexNode node = new IndexNode(trie, index);
+        if (node.getDocumentFrequency() >= minLeafWeight || 0 == index) nodeDocuments[index] = node.getDocuments();
+      });
+    }
+    
+    /**
+     * Counts the documents of each category within both sets.
+     *
+     * @param documents the documents
+     * @param mask      the mask
+     * @return the per-category document counts
+     */
+    long[] histogram(BitSet documents, BitSet mask) {
+      BitSet intersection = (BitSet) documents.clone();
+      intersection.and(mask);
+      long[] counts = new long[categoryDocuments.length];
+      for (int category = 0; category < counts.length; category++) {
+        BitSet categoryIntersection = (BitSet) intersection.clone();
+        categoryIntersection.and(categoryDocuments[category]);
+        counts[category] = categoryIntersection.cardinality();
+      }
+      return counts;
+    }
+    
+    /**
+     * Category sizes map.
+     *
+     * @param counts the counts
+     * @return the map
+     */
+    Map<String, Long> categorySizes(long[] counts) {
+      return IntStream.range(0, counts.length).boxed().collect(Collectors.toMap(categoryNames::get, i -> counts[i]));
+    }
   }
   
-  private Optional<NodeInfo> categorizationSubstring(IndexNode node, Map<Integer, Integer> categoryMap, Map<Integer, Long> sum) {
-    List<NodeInfo> childrenInfo = node.getChildren().map(n -> categorizationSubstring(n, categoryMap, sum))
-      .filter(x -> x.isPresent()).map(x -> x.get()).collect(Collectors.toList());
-    NodeInfo info = info(node, sum, categoryMap);
-    if (info.node.getString().isEmpty() || !Double.isFinite(info.entropy)) info = null;
-    Optional<NodeInfo> max = Stream.concat(null == info ? Stream.empty() : Stream.of(info), childrenInfo.stream())
-      .max(Comparator.comparing(x -> x.entropy));
-    return max;
+  @SuppressWarnings("serial")
+  private class TrainingTask extends RecursiveTask<Function<String, Map<String, Double>>> {
+    private final Corpus corpus;
+    private final BitSet mask;
+    private final int depth;
+    private final String indent;
+    
+    /**
+     * Instantiates a new Training task.
+     *
+     * @param corpus the corpus
+     * @param mask   the documents in this subtree
+     * @param depth  the depth
+     * @param indent the indent
+     */
+    TrainingTask(Corpus corpus, BitSet mask, int depth, String indent) {
+      this.corpus = corpus;
+      this.mask = mask;
+      this.depth = depth;
+      this.indent = indent;
+    }
+    
+    @Override
+    protected Function<String, Map<String, Double>> compute() {
+      long[] sum = corpus.histogram(mask, mask);
+      if (0 == depth || 1 >= Arrays.stream(sum).filter(x -> x > 0).count()) {
+        return leaf(sum);
+      }
+      Optional<NodeInfo> info = categorizationSubstring(corpus, corpus.trie.root(), mask, sum);
+      if (!info.isPresent()) return leaf(sum);
+      String split = info.get().node.getString();
+      BitSet lMask = (BitSet) mask.clone();
+      lMask.and(info.get().documents);
+      BitSet rMask = (BitSet) mask.clone();
+      rMask.andNot(info.get().documents);
+      if (lMask.isEmpty() || rMask.isEmpty()) {
+        return leaf(sum);
+      }
+      if (null != verbose) {
+        verbose.println(String.format(indent + "\"%s\" -> Contains=%s\tAbsent=%s\tEntropy=%5f", split,
+          corpus.categorySizes(corpus.histogram(lMask, lMask)),
+          corpus.categorySizes(corpus.histogram(rMask, rMask)),
+          info.get().entropy));
+      }
+      TrainingTask lTask = new TrainingTask(corpus, lMask, depth - 1, indent + "  ");
+      TrainingTask rTask = new TrainingTask(corpus, rMask, depth - 1, indent + "  ");
+      final Function<String, Map<String, Double>> l;
+      final Function<String, Map<String, Double>> r;
+      if (null == verbose) {
+        rTask.fork();
+        l = lTask.compute();
+        r = rTask.join();
+      }
+      else {
+        // Keep the verbose log in tree order
+        l = lTask.compute();
+        r = rTask.compute();
+      }
+      return new SplitNode(split, l, r);
+    }
+    
+    private Function<String, Map<String, Double>> leaf(long[] sum) {
+      double total = Arrays.stream(sum).sum();
+      return new LeafNode(IntStream.range(0, sum.length).boxed()
+        .collect(Collectors.toMap(corpus.categoryNames::get, i -> sum[i] / total)));
+    }
   }
   
   private class NodeInfo {
@@ -175,9 +273,9 @@ public class ClassificationTree {
      */
     IndexNode node;
     /**
-     * The Category weights.
+     * The Documents containing the node's string.
      */
-    Map<Integer, Long> categoryWeights;
+    BitSet documents;
     /**
      * The Entropy.
      */
@@ -186,15 +284,75 @@ public class ClassificationTree {
     /**
      * Instantiates a new Node info.
      *
-     * @param node            the node
-     * @param categoryWeights the category weights
-     * @param entropy         the entropy
+     * @param node      the node
+     * @param documents the documents
+     * @param entropy   the entropy
      */
-    public NodeInfo(IndexNode node, Map<Integer, Long> categoryWeights, double entropy) {
+    public NodeInfo(IndexNode node, BitSet documents, double entropy) {
       this.node = node;
-      this.categoryWeights = categoryWeights;
+      this.documents = documents;
       this.entropy = entropy + depthBias * node.getDepth();
     }
   }
   
+  /**
+   * A tree node routing on whether the input contains the split substring.
+   */
+  static class SplitNode implements Function<String, Map<String, Double>> {
+    /**
+     * The Split.
+     */
+    final String split;
+    /**
+     * The subtree for inputs containing the split.
+     */
+    final Function<String, Map<String, Double>> contains;
+    /**
+     * The subtree for inputs not containing the split.
+     */
+    final Function<String, Map<String, Double>> absent;
+    
+    /**
+     * Instantiates a new Split node.
+     *
+     * @param split    the split
+     * @param contains the contains
+     * @param absent   the absent
+     */
+    SplitNode(String split, Function<String, Map<String, Double>> contains, Function<String, Map<String, Double>> absent) {
+      this.split = split;
+      this.contains = contains;
+      this.absent = absent;
+    }
+    
+    @Override
+    public Map<String, Double> apply(String str) {
+      return str.contains(split) ? contains.apply(str) : absent.apply(str);
+    }
+  }
+  
+  /**
+   * A tree leaf holding the category distribution of its training documents.
+   */
+  static class LeafNode implements Function<String, Map<String, Double>> {
+    /**
+     * The Distribution.
+     */
+    final Map<String, Double> distribution;
+    
+    /**
+     * Instantiates a new Leaf node.
+     *
+     * @param distribution the distribution
+     */
+    LeafNode(Map<String, Double> distribution) {
+      this.distribution = distribution;
+    }
+    
+    @Override
+    public Map<String, Double> apply(String str) {
+      return new HashMap<>(distribution);
+    }
+  }
+  
 }
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2018 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.text;
+
+import com.simiacryptus.util.MonitoredItem;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the steps a codec takes in one direction, encoding or decoding. Counters are LongAdders, striped across
+ * threads, so recording costs an uncontended add and codecs may be shared freely; a snapshot is only summed when the
+ * metrics are read.
+ * <p>
+ * A forward step codes a run of characters predicted from a context node, whose depth is recorded in a histogram. A
+ * backup moves to a shorter context; a fallback or escape is the coded symbol for leaving a context; a literal is a
+ * character coded raw because no context predicts it. Each raw character counts once toward the escape rate, through its
+ * literal, whether or not the codec also codes an escape symbol before it. Both directions record the exact number of
+ * coded bits, so their bits per char agree.
+ */
+public class CodecMetrics implements MonitoredItem {
+  
+  private static final int MAX_DEPTH = 64;
+  
+  private final LongAdder strings = new LongAdder();
+  private final LongAdder chars = new LongAdder();
+  private final LongAdder bits = new LongAdder();
+  private final LongAdder forwards = new LongAdder();
+  private final LongAdder backups = new LongAdder();
+  private final LongAdder backupSteps = new LongAdder();
+  private final LongAdder fallbacks = new LongAdder();
+  private final LongAdder escapes = new LongAdder();
+  private final LongAdder literals = new LongAdder();
+  private final LongAdder[] contextDepths = new LongAdder[MAX_DEPTH];
+  
+  /**
+   * Instantiates a new Codec metrics.
+   */
+  public CodecMetrics() {
+    for (int i = 0; i < MAX_DEPTH; i++) contextDepths[i] = new LongAdder();
+  }
+  
+  /**
+   * Records a coded string.
+   *
+   * @param length the number of characters
+   * @param size   the number of bits
+   */
+  void recordString(long length, long size) {
+    strings.increment();
+    chars.add(length);
+    bits.add(size);
+  }
+  
+  /**
+   * Records a forward step.
+   *
+   * @param contextDepth the depth of the context node; deeper contexts share the last histogram bucket
+   */
+  void recordForward(int contextDepth) {
+    forwards.increment();
+    contextDepths[Math.max(0, Math.min(contextDepth, MAX_DEPTH - 1))].increment();
+  }
+  
+  /**
+   * Records a backup to a shorter context.
+   *
+   * @param steps the number of suffix links followed
+   */
+  void recordBackup(int steps) {
+    backups.increment();
+    backupSteps.add(steps);
+  }
+  
+  /**
+   * Records a coded fallback.
+   */
+  void recordFallback() {
+    fallbacks.increment();
+  }
+  
+  /**
+   * Records a coded escape.
+   */
+  void recordEscape() {
+    escapes.increment();
+  }
+  
+  /**
+   * Records a literal character.
+   */
+  void recordLiteral() {
+    literals.increment();
+  }
+  
+  /**
+   * Resets all counters.
+   */
+  public void reset() {
+    for (LongAdder adder : new LongAdder[]{strings, chars, bits, forwards, backups, backupSteps, fallbacks, escapes, literals}) {
+      adder.reset();
+    }
+    for (LongAdder adder : contextDepths) adder.reset();
+  }
+  
+  @Override
+  public Map<String, Object> getMetrics() {
+    HashMap<String, Object> map = new HashMap<>();
+    long chars = this.chars.sum();
+    map.put("strings", strings.sum());
+    map.put("chars", chars);
+    map.put("bits", bits.sum());
+    map.put("forwards", forwards.sum());
+    map.put("backups", backups.sum());
+    map.put("backupSteps", backupSteps.sum());
+    map.put("fallbacks", fallbacks.sum());
+    map.put("escapes", escapes.sum());
+    map.put("literals", literals.sum());
+    map.put("bitsPerChar", perChar(bits.sum(), chars));
+    map.put("fallbackRate", perChar(fallbacks.sum() + backups.sum(), chars));
+    map.put("escapeRate", perChar(literals.sum(), chars));
+    TreeMap<Integer, Long> depths = new TreeMap<>();
+    for (int i = 0; i < MAX_DEPTH; i++) {
+      long count = contextDepths[i].sum();
+      if (0 < count) depths.put(i, count);
+    }
+    map.put("contextDepths", depths);
+    return map;
+  }
+  
+  private static double perChar(long count, long chars) {
+    return 0 == chars ? 0.0 : (double) count / chars;
+  }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2018 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.text;
+
+import java.util.*;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * A classification tree compiled for throughput. Every split substring of the tree is gathered into one Aho-Corasick
+ * automaton, so a single pass over the input evaluates all split predicates at once; the tree is then walked using
+ * the resulting bitmask instead of rescanning the input at each level.
+ */
+public class CompiledClassifier implements Function<String, Map<String, Double>> {
+  
+  private final int[] splitPattern;
+  private final int[] containsNode;
+  private final int[] absentNode;
+  private final List<Map<String, Double>> leafDistributions;
+  private final int patternCount;
+  private final char[][] gotoTokens;
+  private final int[][] gotoStates;
+  private final int[] failure;
+  private final long[][] outputs;
+  
+  private CompiledClassifier(List<Function<String, Map<String, Double>>> treeNodes, List<String> patterns) {
+    int nodeCount = treeNodes.size();
+    splitPattern = new int[nodeCount];
+    containsNode = new int[nodeCount];
+    absentNode = new int[nodeCount];
+    leafDistributions = new ArrayList<>(nodeCount);
+    IdentityHashMap<Function<String, Map<String, Double>>, Integer> nodeIndex = new IdentityHashMap<>(nodeCount);
+    for (int i = 0; i < nodeCount; i++) nodeIndex.put(treeNodes.get(i), i);
+    Map<String, Integer> patternIndex = new HashMap<>(patterns.size());
+    for (int i = 0; i < patterns.size(); i++) patternIndex.put(patterns.get(i), i);
+    for (int i = 0; i < nodeCount; i++) {
+      Function<String, Map<String, Double>> node = treeNodes.get(i);
+      if (node instanceof ClassificationTree.SplitNode) {
+        ClassificationTree.SplitNode split = (ClassificationTree.SplitNode) node;
+        splitPattern[i] = patternIndex.get(split.split);
+        containsNode[i] = nodeIndex.get(split.contains);
+        absentNode[i] = nodeIndex.get(split.absent);
+        leafDistributions.add(null);
+      }
+      else {
+        splitPattern[i] = -1;
+        leafDistributions.add(((ClassificationTree.LeafNode) node).distribution);
+      }
+    }
+    patternCount = patterns.size();
+    
+    List<TreeMap<Character, Integer>> gotoMaps = new ArrayList<>();
+    List<BitSet> outputSets = new ArrayList<>();
+    gotoMaps.add(new TreeMap<>());
+    outputSets.add(new BitSet());
+    for (int pattern = 0; pattern < patterns.size(); pattern++) {
+      int state = 0;
+      for (char c : patterns.get(pattern).toCharArray()) {
+        Integer next = gotoMaps.get(state).get(c);
+        if (null == next) {
+          next = gotoMaps.size();
+          gotoMaps.get(state).put(c, next);
+          gotoMaps.add(new TreeMap<>());
+          outputSets.add(new BitSet());
+        }
+        state = next;
+      }
+      outputSets.get(state).set(pattern);
+    }
+    int stateCount = gotoMaps.size();
+    gotoTokens = new char[stateCount][];
+    gotoStates = new int[stateCount][];
+    for (int state = 0; state < stateCount; state++) {
+      TreeMap<Character, Integer> map = gotoMaps.get(state);
+      gotoTokens[state] = new char[map.size()];
+      gotoStates[state] = new int[map.size()];
+      int i = 0;
+      for (Map.Entry<Character, Integer> e : map.entrySet()) {
+        gotoTokens[state][i] = e.getKey();
+        gotoStates[state][i] = e.getValue();
+        i++;
+      }
+    }
+    failure = new int[stateCount];
+    ArrayDeque<Integer> queue = new ArrayDeque<>();
+    for (int child : gotoStates[0]) {
+      failure[child] = 0;
+      queue.add(child);
+    }
+    while (!queue.isEmpty()) {
+      int state = queue.poll();
+      for (int i = 0; i < gotoTokens[state].length; i++) {
+        int child = gotoStates[state][i];
+        failure[child] = transition(failure[state], gotoTokens[state][i]);
+        outputSets.get(child).or(outputSets.get(failure[child]));
+        queue.add(child);
+      }
+    }
+    outputs = new long[stateCount][];
+    for (int state = 0; state < stateCount; state++) {
+      outputs[state] = outputSets.get(state).isEmpty() ? null : outputSets.get(state).toLongArray();
+    }
+  }
+  
+  /**
+   * Compiles a tree produced by {@link ClassificationTree#categorizationTree(Map, int)}.
+   *
+   * @param tree the tree
+   * @return the compiled classifier
+   */
+  public static CompiledClassifier compile(Function<String, Map<String, Double>> tree) {
+    List<Function<String, Map<String, Double>>> nodes = new ArrayList<>();
+    LinkedHashSet<String> patterns = new LinkedHashSet<>();
+    ArrayDeque<Function<String, Map<String, Double>>> queue = new ArrayDeque<>();
+    queue.add(tree);
+    while (!queue.isEmpty()) {
+      Function<String, Map<String, Double>> node = queue.poll();
+      nodes.add(node);
+      if (node instanceof ClassificationTree.SplitNode) {
+        ClassificationTree.SplitNode split = (ClassificationTree.SplitNode) node;
+        patterns.add(split.split);
+        queue.add(split.contains);
+        queue.add(split.absent);
+      }
+      else if (!(node instanceof ClassificationTree.LeafNode)) {
+        throw new IllegalArgumentException("Not a classification tree: " + node.getClass());
+      }
+    }
+    return new CompiledClassifier(nodes, new ArrayList<>(patterns));
+  }
+  
+  private int transition(int state, char token) {
+    while (true) {
+      int i = Arrays.binarySearch(gotoTokens[state], token);
+      if (i >= 0) return gotoStates[state][i];
+      if (0 == state) return 0;
+      state = failure[state];
+    }
+  }
+  
+  /**
+   * Evaluates every split predicate in one pass over the input.
+   *
+   * @param str the str
+   * @return the bitmask of split substrings contained in the input
+   */
+  public long[] match(String str) {
+    long[] matched = new long[(patternCount + 63) / 64];
+    int state = 0;
+    for (int i = 0; i < str.length(); i++) {
+      state = transition(state, str.charAt(i));
+      long[] output = outputs[state];
+      if (null != output) {
+        for (int word = 0; word < output.length; word++) matched[word] |= output[word];
+      }
+    }
+    return matched;
+  }
+  
+  @Override
+  public Map<String, Double> apply(String str) {
+    long[] matched = match(str);
+    int node = 0;
+    while (splitPattern[node] >= 0) {
+      int pattern = splitPattern[node];
+      boolean contains = 0 != (matched[pattern / 64] & (1L << (pattern % 64)));
+      node = contains ? containsNode[node] : absentNode[node];
+    }
+    return new HashMap<>(leafDistributions.get(node));
+  }
+  
+  /**
+   * Classifies a batch of inputs in parallel.
+   *
+   * @param strings the strings
+   * @return the category distributions, in input order
+   */
+  public List<Map<String, Double>> classifyAll(List<String> strings) {
+    return strings.parallelStream().map(this::apply).collect(Collectors.toList());
+  }
+}
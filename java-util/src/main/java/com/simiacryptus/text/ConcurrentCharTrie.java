@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2018 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.text;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.simiacryptus.text.NodewalkerCodec.END_OF_STRING;
+
+/**
+ * A counting trie for streaming n-gram models, taking documents from many threads at once. Each document is counted
+ * as CharTrieIndex counts it, every position walking down to maxLevels characters or to the END_OF_STRING closing the
+ * document, and freeze() lays the counts out as a regular CharTrie.
+ * <p>
+ * Nodes live in segmented primitive arrays that grow without copying. Counts are incremented atomically in place,
+ * the root's in a LongAdder since every position passes through it. A node's children form a linked list whose head
+ * is swapped in by compare-and-set, so a new child is published without locking; a thread losing the race rescans
+ * the list, and the child it allocated is left unreachable. Children of the root are found in a table indexed by
+ * token.
+ */
+public class ConcurrentCharTrie {
+  
+  private static final int SEGMENT_BITS = 16;
+  private static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+  private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+  /**
+   * Marks a missing child; the root is never anyone's child.
+   */
+  private static final int NONE = 0;
+  
+  private final int maxLevels;
+  private final LongAdder rootCount = new LongAdder();
+  private final AtomicIntegerArray rootChildren = new AtomicIntegerArray(Character.MAX_VALUE + 1);
+  private final AtomicReferenceArray<Segment> segments = new AtomicReferenceArray<>(1 << (31 - SEGMENT_BITS));
+  private final AtomicInteger nextNode = new AtomicInteger(1);
+  
+  /**
+   * Instantiates a new Concurrent char trie.
+   *
+   * @param maxLevels the max levels
+   */
+  public ConcurrentCharTrie(int maxLevels) {
+    if (maxLevels < 1) throw new IllegalArgumentException("maxLevels must be positive");
+    this.maxLevels = maxLevels;
+  }
+  
+  /**
+   * Counts a document. This may be called from any number of threads.
+   *
+   * @param document the document
+   * @return this concurrent char trie
+   */
+  public ConcurrentCharTrie addDocument(String document) {
+    int length = document.length();
+    rootCount.add(length + 1);
+    for (int start = 0; start <= length; start++) {
+      int node = 0;
+      for (int position = start; position < start + maxLevels; position++) {
+        char token = position < length ? document.charAt(position) : END_OF_STRING;
+        node = child(node, token);
+        segment(node).counts.incrementAndGet(node & SEGMENT_MASK);
+        if (position >= length) break;
+      }
+    }
+    return this;
+  }
+  
+  /**
+   * Gets the number of nodes allocated, including any left unreachable by lost races.
+   *
+   * @return the node count
+   */
+  public int getNodeCount() {
+    return nextNode.get();
+  }
+  
+  /**
+   * Lays out the counts as a char trie, breadth-first. Counts added while freezing may or may not be included, so
+   * freeze between batches for a consistent snapshot.
+   *
+   * @return the char trie
+   */
+  public CharTrie freeze() {
+    CharTrie result = new CharTrie();
+    int[] queue = new int[16];
+    int size = 1;
+    for (int head = 0; head < size; head++) {
+      int node = queue[head];
+      int[] children = children(node);
+      if (size + children.length > queue.length) queue = Arrays.copyOf(queue, Math.max(2 * queue.length, size + children.length));
+      int first = size;
+      for (int child : children) queue[size++] = child;
+      char token = 0 == node ? END_OF_STRING : segment(node).tokens[node & SEGMENT_MASK];
+      long count = 0 == node ? rootCount.sum() : segment(node).counts.get(node & SEGMENT_MASK);
+      result.nodes.set(head, new NodeData(token, (short) children.length, 0 < children.length ? first : -1, count, -1));
+    }
+    return result.recomputeCursorDetails().recomputeGodparents();
+  }
+  
+  /**
+   * Lists a node's children in token order.
+   */
+  private int[] children(int node) {
+    if (0 == node) {
+      int[] children = new int[16];
+      int count = 0;
+      for (int token = 0; token <= Character.MAX_VALUE; token++) {
+        int child = rootChildren.get(token);
+        if (NONE == child) continue;
+        if (count == children.length) children = Arrays.copyOf(children, 2 * count);
+        children[count++] = child;
+      }
+      return Arrays.copyOf(children, count);
+    }
+    int count = 0;
+    for (int child = segment(node).firstChild.get(node & SEGMENT_MASK); NONE != child; child = segment(child).nextSibling[child & SEGMENT_MASK]) {
+      count++;
+    }
+    int[] children = new int[count];
+    int i = 0;
+    for (int child = segment(node).firstChild.get(node & SEGMENT_MASK); NONE != child && i < count; child = segment(child).nextSibling[child & SEGMENT_MASK]) {
+      children[i++] = child;
+    }
+    // Children are few; sort them by token in place
+    for (int j = 1; j < count; j++) {
+      int child = children[j];
+      char token = segment(child).tokens[child & SEGMENT_MASK];
+      int k = j - 1;
+      while (k >= 0 && segment(children[k]).tokens[children[k] & SEGMENT_MASK] > token) {
+        children[k + 1] = children[k];
+        k--;
+      }
+      children[k + 1] = child;
+    }
+    return children;
+  }
+  
+  /**
+   * Finds or creates the child of a node for a token.
+   */
+  private int child(int parent, char token) {
+    if (0 == parent) {
+      int child = rootChildren.get(token);
+      if (NONE != child) return child;
+      int created = allocate(token);
+      return rootChildren.compareAndSet(token, NONE, created) ? created : rootChildren.get(token);
+    }
+    AtomicIntegerArray firstChild = segment(parent).firstChild;
+    int offset = parent & SEGMENT_MASK;
+    int head = firstChild.get(offset);
+    int created = NONE;
+    while (true) {
+      for (int child = head; NONE != child; child = segment(child).nextSibling[child & SEGMENT_MASK]) {
+        if (segment(child).tokens[child & SEGMENT_MASK] == token) return child;
+      }
+      if (NONE == created) created = allocate(token);
+      segment(created).nextSibling[created & SEGMENT_MASK] = head;
+      if (firstChild.compareAndSet(offset, head, created)) return created;
+      head = firstChild.get(offset);
+    }
+  }
+  
+  private int allocate(char token) {
+    int node = nextNode.getAndIncrement();
+    if (node < 0) throw new IllegalStateException("Node capacity exceeded");
+    int index = node >>> SEGMENT_BITS;
+    if (null == segments.get(index)) segments.compareAndSet(index, null, new Segment());
+    segments.get(index).tokens[node & SEGMENT_MASK] = token;
+    return node;
+  }
+  
+  private Segment segment(int node) {
+    return segments.get(node >>> SEGMENT_BITS);
+  }
+  
+  /**
+   * A block of nodes. Tokens and sibling links are written before a node is published through a compare-and-set,
+   * which makes them visible to every thread that reaches the node.
+   */
+  private static final class Segment {
+    final char[] tokens = new char[SEGMENT_SIZE];
+    final int[] nextSibling = new int[SEGMENT_SIZE];
+    final AtomicIntegerArray firstChild = new AtomicIntegerArray(SEGMENT_SIZE);
+    final AtomicLongArray counts = new AtomicLongArray(SEGMENT_SIZE);
+  }
+}
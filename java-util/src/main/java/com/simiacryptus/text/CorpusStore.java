@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2018 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.text;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+
+/**
+ * The documents of a CharTrieIndex, packed into one contiguous char buffer. Every document is bracketed by
+ * END_OF_STRING sentinels, so a single global position identifies both a document and an offset within it, and a scan
+ * reading past the end of a document stops on the sentinel without any bounds lookup. The buffer may live on the heap
+ * or in direct (off-heap) memory.
+ */
+public class CorpusStore {
+  
+  private final boolean direct;
+  private CharBuffer buffer;
+  private int length;
+  private int[] offsets;
+  private int size;
+  
+  /**
+   * Instantiates a new Corpus store.
+   *
+   * @param direct whether to hold the text in direct (off-heap) memory
+   */
+  public CorpusStore(boolean direct) {
+    this.direct = direct;
+    this.buffer = allocate(1024);
+    this.offsets = new int[16];
+    this.buffer.put(0, NodewalkerCodec.END_OF_STRING);
+    this.length = 1;
+  }
+  
+  /**
+   * Instantiates a new Corpus store.
+   *
+   * @param copyFrom the copy from
+   */
+  public CorpusStore(CorpusStore copyFrom) {
+    synchronized (copyFrom) {
+      this.direct = copyFrom.direct;
+      this.buffer = allocate(Math.max(copyFrom.length, 1));
+      CharBuffer source = copyFrom.buffer.duplicate();
+      source.position(0).limit(copyFrom.length);
+      this.buffer.put(source);
+      this.length = copyFrom.length;
+      this.offsets = Arrays.copyOf(copyFrom.offsets, Math.max(copyFrom.size, 1));
+      this.size = copyFrom.size;
+    }
+  }
+  
+  private CharBuffer allocate(int capacity) {
+    if (!direct) return CharBuffer.allocate(capacity);
+    long bytes = 2L * capacity;
+    if (bytes > Integer.MAX_VALUE) {
+      throw new IllegalStateException("Off-heap corpus exceeds " + maxCapacity() + " characters: " + capacity);
+    }
+    return ByteBuffer.allocateDirect((int) bytes).asCharBuffer();
+  }
+  
+  /**
+   * The most characters the buffer can hold; a direct buffer is addressed in bytes, two per character.
+   */
+  private int maxCapacity() {
+    return direct ? Integer.MAX_VALUE / 2 : Integer.MAX_VALUE;
+  }
+  
+  /**
+   * Appends a document.
+   *
+   * @param document the document
+   * @return the global position at which the document starts
+   */
+  public synchronized int add(String document) {
+    long required = (long) length + document.length() + 1;
+    if (required > maxCapacity()) throw new IllegalStateException("Corpus exceeds " + maxCapacity() + " characters");
+    if (required > buffer.capacity()) {
+      CharBuffer grown = allocate((int) Math.min(maxCapacity(), Math.max(required, 2L * buffer.capacity())));
+      CharBuffer source = buffer.duplicate();
+      source.position(0).limit(length);
+      grown.put(source);
+      buffer = grown;
+    }
+    if (size == offsets.length) offsets = Arrays.copyOf(offsets, 2 * size);
+    int start = length;
+    buffer.position(start);
+    buffer.put(document);
+    buffer.put(NodewalkerCodec.END_OF_STRING);
+    length = buffer.position();
+    offsets[size++] = start;
+    return start;
+  }
+  
+  /**
+   * The number of documents.
+   *
+   * @return the int
+   */
+  public int size() {
+    return size;
+  }
+  
+  /**
+   * Is empty boolean.
+   *
+   * @return the boolean
+   */
+  public boolean isEmpty() {
+    return 0 == size;
+  }
+  
+  /**
+   * Gets a document.
+   *
+   * @param documentId the document id
+   * @return the string
+   */
+  public String get(int documentId) {
+    int start = offset(documentId);
+    CharBuffer view = buffer.duplicate();
+    view.position(start).limit(start + length(documentId));
+    return view.toString();
+  }
+  
+  /**
+   * The global position of the first character of a document.
+   *
+   * @param documentId the document id
+   * @return the int
+   */
+  public int offset(int documentId) {
+    return offsets[documentId];
+  }
+  
+  /**
+   * The length of a document, excluding its sentinel.
+   *
+   * @param documentId the document id
+   * @return the int
+   */
+  public int length(int documentId) {
+    int end = documentId + 1 < size ? offsets[documentId + 1] : length;
+    return end - offsets[documentId] - 1;
+  }
+  
+  /**
+   * The character at a global position; END_OF_STRING at document boundaries.
+   *
+   * @param position the position
+   * @return the char
+   */
+  public char charAt(int position) {
+    return buffer.get(position);
+  }
+  
+  /**
+   * Finds the document holding a global position, including the sentinel ending it.
+   *
+   * @param position the position
+   * @return the document id
+   */
+  public int documentAt(int position) {
+    int i = Arrays.binarySearch(offsets, 0, size, position);
+    return i >= 0 ? i : -(i + 1) - 1;
+  }
+  
+  /**
+   * The total length of all documents, excluding sentinels.
+   *
+   * @return the long
+   */
+  public long getTextLength() {
+    return length - size - 1;
+  }
+  
+  /**
+   * Gets memory size.
+   *
+   * @return the memory size
+   */
+  public int getMemorySize() {
+    return buffer.capacity() * 2 + offsets.length * 4;
+  }
+  
+  /**
+   * Copy corpus store.
+   *
+   * @return the corpus store
+   */
+  public CorpusStore copy() {
+    return new CorpusStore(this);
+  }
+}
@@ -52,7 +52,7 @@ public class Cursor {
    * @return the document
    */
   public String getDocument() {
-    return this.charTrieIndex.documents.get(data.documentId);
+    return this.charTrieIndex.documents.get(getDocumentId());
   }
   
   /**
@@ -61,7 +61,8 @@ public class Cursor {
    * @return the boolean
    */
   public boolean hasNext() {
-    return (getPosition() + 1) < getDocument().length();
+    if (this.charTrieIndex.reversed) return getPosition() > 0;
+    return (getPosition() + 1) < this.charTrieIndex.documents.length(getDocumentId());
   }
   
   /**
@@ -70,9 +71,8 @@ public class Cursor {
    * @return the token
    */
   public char getToken() {
-    int index = getPosition();
-    String document = getDocument();
-    return index >= document.length() ? NodewalkerCodec.END_OF_STRING : document.charAt(index);
+    // Each document is followed by an END_OF_STRING sentinel in the corpus
+    return this.charTrieIndex.charAt(data.position, depth);
   }
   
   /**
@@ -90,7 +90,9 @@ public class Cursor {
    * @return the position
    */
   public int getPosition() {
-    return data.position + depth - 1;
+    int offset = this.charTrieIndex.documents.offset(getDocumentId());
+    if (this.charTrieIndex.reversed) return data.position - offset - depth + 1;
+    return data.position - offset + depth - 1;
   }
   
   /**
@@ -99,6 +101,6 @@ public class Cursor {
    * @return the document id
    */
   public int getDocumentId() {
-    return data.documentId;
+    return this.charTrieIndex.documentAt(data.position);
   }
 }
\ No newline at end of file
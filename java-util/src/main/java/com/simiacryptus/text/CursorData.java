@@ -24,36 +24,19 @@ package com.simiacryptus.text;
  */
 class CursorData {
   /**
-   * The Document id.
-   */
-  int documentId;
-  /**
-   * The Position.
+   * The global position within the corpus at which the cursor's string starts.
    */
   int position;
   
   /**
    * Instantiates a new Cursor data.
    *
-   * @param documentId the document id
-   * @param position   the position
+   * @param position the position
    */
-  public CursorData(int documentId, int position) {
-    this.documentId = documentId;
+  public CursorData(int position) {
     this.position = position;
   }
   
-  /**
-   * Sets document id.
-   *
-   * @param documentId the document id
-   * @return the document id
-   */
-  public CursorData setDocumentId(int documentId) {
-    this.documentId = documentId;
-    return this;
-  }
-  
   /**
    * Sets position.
    *
@@ -76,17 +59,12 @@ class CursorData {
     
     CursorData that = (CursorData) o;
     
-    if (documentId != that.documentId) {
-      return false;
-    }
     return position == that.position;
   }
   
   @Override
   public int hashCode() {
-    int result = documentId;
-    result = 31 * result + position;
-    return result;
+    return position;
   }
   
-}
\ No newline at end of file
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2018 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.text;
+
+import java.util.Arrays;
+
+/**
+ * The total weight of the cursors before each cursor slot of a CharTrieIndex, plus a trailing total. Offsets are held
+ * as ints while the total weight fits in one, halving the space of the table for all but the heaviest corpora.
+ */
+final class CursorOffsets {
+  
+  private final int[] narrow;
+  private final long[] wide;
+  
+  /**
+   * Instantiates a new Cursor offsets.
+   *
+   * @param length      the number of offsets, one more than the number of cursors
+   * @param totalWeight the total weight of all cursors
+   */
+  CursorOffsets(int length, long totalWeight) {
+    this.narrow = totalWeight <= Integer.MAX_VALUE ? new int[length] : null;
+    this.wide = null == narrow ? new long[length] : null;
+  }
+  
+  private CursorOffsets(int[] narrow, long[] wide) {
+    this.narrow = narrow;
+    this.wide = wide;
+  }
+  
+  /**
+   * The total weight of the cursors before a slot.
+   *
+   * @param slot the slot
+   * @return the offset
+   */
+  long get(int slot) {
+    return null == narrow ? wide[slot] : narrow[slot];
+  }
+  
+  /**
+   * Sets the total weight of the cursors before a slot.
+   *
+   * @param slot   the slot
+   * @param offset the offset
+   */
+  void set(int slot, long offset) {
+    if (null == narrow) wide[slot] = offset;
+    else narrow[slot] = (int) offset;
+  }
+  
+  /**
+   * Overwrites a run of offsets, starting at the given slot.
+   *
+   * @param offsets   the offsets
+   * @param firstSlot the first slot
+   */
+  void putAll(long[] offsets, int firstSlot) {
+    if (null == narrow) {
+      System.arraycopy(offsets, 0, wide, firstSlot, offsets.length);
+    }
+    else {
+      for (int i = 0; i < offsets.length; i++) {
+        narrow[firstSlot + i] = (int) offsets[i];
+      }
+    }
+  }
+  
+  /**
+   * Finds the slot with the given offset.
+   *
+   * @param offset the offset
+   * @return the slot, or a negative value if no slot begins at the offset
+   */
+  int search(long offset) {
+    if (null != wide) return Arrays.binarySearch(wide, offset);
+    if (offset > Integer.MAX_VALUE) return -(narrow.length + 1);
+    return Arrays.binarySearch(narrow, (int) offset);
+  }
+  
+  /**
+   * Gets memory size.
+   *
+   * @return the memory size
+   */
+  int getMemorySize() {
+    return null == narrow ? 8 * wide.length : 4 * narrow.length;
+  }
+  
+  /**
+   * Copy cursor offsets.
+   *
+   * @return the cursor offsets
+   */
+  CursorOffsets copy() {
+    return new CursorOffsets(null == narrow ? null : narrow.clone(), null == wide ? null : wide.clone());
+  }
+}
@@ -36,17 +36,16 @@ class CursorType implements SerialType<CursorData> {
   
   @Override
   public int getSize() {
-    return 8;
+    return 4;
   }
   
   @Override
   public CursorData read(ByteBuffer input) throws IOException {
-    return new CursorData(input.getInt(), input.getInt());
+    return new CursorData(input.getInt());
   }
   
   @Override
   public void write(ByteBuffer output, CursorData value) throws IOException {
-    output.putInt(value.documentId);
     output.putInt(value.position);
   }
 }
\ No newline at end of file
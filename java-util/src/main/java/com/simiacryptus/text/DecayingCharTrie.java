@@ -0,0 +1,378 @@
+/*
+ * Copyright (c) 2018 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.text;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+import static com.simiacryptus.text.NodewalkerCodec.END_OF_STRING;
+
+/**
+ * A counting trie for unbounded streams, whose counts follow recent text: each document is counted as CharTrieIndex
+ * counts it, and its weight then halves every halfLife characters of later text and, when a window is set, drops out
+ * once the window has moved past it. freeze() rounds the current weights into a regular CharTrie.
+ * <p>
+ * Decay is lazy. Weights are stored in units that grow by a factor of two every halfLife characters since an origin,
+ * so new text is added at the current scale and every stored weight shrinks relative to it without being touched.
+ * Reads divide by the scale. The origin only moves, rescaling stored weights, during pruning or before the scale would
+ * overflow.
+ * <p>
+ * Once more than maxNodes nodes are live, the lightest are pruned down to three quarters of the budget. A node weighs
+ * no more than its parent, so pruning by weight drops whole subtrees. The trie is guarded by its own monitor.
+ */
+public class DecayingCharTrie {
+  
+  private static final int NONE = 0;
+  private static final double MAX_EXPONENT = 512;
+  
+  private final int maxLevels;
+  private final int maxNodes;
+  private final int[] rootChildren = new int[Character.MAX_VALUE + 1];
+  private final ArrayDeque<Entry> window = new ArrayDeque<>();
+  private double halfLife = Double.POSITIVE_INFINITY;
+  private long windowSize = Long.MAX_VALUE;
+  private long windowChars = 0;
+  private long clock = 0;
+  private long origin = 0;
+  private double rootWeight = 0;
+  private char[] tokens = new char[1024];
+  private double[] weights = new double[1024];
+  private int[] firstChild = new int[1024];
+  private int[] nextSibling = new int[1024];
+  private int[] free = new int[16];
+  private int freeCount = 0;
+  private int allocated = 1;
+  private int liveNodes = 1;
+  
+  /**
+   * Instantiates a new Decaying char trie.
+   *
+   * @param maxLevels the max levels
+   * @param maxNodes  the node budget
+   */
+  public DecayingCharTrie(int maxLevels, int maxNodes) {
+    if (maxLevels < 1) throw new IllegalArgumentException("maxLevels must be positive");
+    if (maxNodes < 2) throw new IllegalArgumentException("maxNodes must be at least 2");
+    this.maxLevels = maxLevels;
+    this.maxNodes = maxNodes;
+  }
+  
+  /**
+   * Gets half life.
+   *
+   * @return the half life, in characters
+   */
+  public synchronized double getHalfLife() {
+    return halfLife;
+  }
+  
+  /**
+   * Sets half life.
+   *
+   * @param halfLife the half life, in characters; infinite for no decay
+   * @return the decaying char trie
+   */
+  public synchronized DecayingCharTrie setHalfLife(double halfLife) {
+    if (!(halfLife > 0)) throw new IllegalArgumentException("halfLife must be positive");
+    if (0 < clock) throw new IllegalStateException("Counting has begun");
+    this.halfLife = halfLife;
+    return this;
+  }
+  
+  /**
+   * Gets window.
+   *
+   * @return the window size, in characters
+   */
+  public synchronized long getWindow() {
+    return windowSize;
+  }
+  
+  /**
+   * Sets window. The newest document is always kept.
+   *
+   * @param windowSize the number of characters of the most recent documents to count
+   * @return the decaying char trie
+   */
+  public synchronized DecayingCharTrie setWindow(long windowSize) {
+    if (windowSize < 1) throw new IllegalArgumentException("windowSize must be positive");
+    this.windowSize = windowSize;
+    evict();
+    return this;
+  }
+  
+  /**
+   * Counts a document, as the most recent text.
+   *
+   * @param document the document
+   * @return the decaying char trie
+   */
+  public synchronized DecayingCharTrie addDocument(String document) {
+    clock += document.length() + 1;
+    if ((clock - origin) / halfLife > MAX_EXPONENT) rescale();
+    double weight = scale(clock);
+    walk(document, weight);
+    if (Long.MAX_VALUE != windowSize) {
+      window.addLast(new Entry(document, clock));
+      windowChars += document.length() + 1;
+      evict();
+    }
+    if (liveNodes > maxNodes) prune(3 * (maxNodes / 4));
+    return this;
+  }
+  
+  /**
+   * Gets the current weight of a string: its decayed count within the window.
+   *
+   * @param text the text
+   * @return the weight, zero if the string is not in the trie
+   */
+  public synchronized double getWeight(String text) {
+    int node = 0;
+    for (int i = 0; i < text.length(); i++) {
+      node = find(node, text.charAt(i));
+      if (NONE == node) return 0;
+    }
+    return (0 == node ? rootWeight : weights[node]) / scale(clock);
+  }
+  
+  /**
+   * Gets the number of live nodes, the root included.
+   *
+   * @return the node count
+   */
+  public synchronized int getNodeCount() {
+    return liveNodes;
+  }
+  
+  /**
+   * Rounds the current weights into a char trie laid out breadth-first. Nodes whose weight rounds to zero are left
+   * out, and the counts of inner nodes become the sums of their children's.
+   *
+   * @return the char trie
+   */
+  public synchronized CharTrie freeze() {
+    double unit = scale(clock);
+    CharTrie result = new CharTrie();
+    int[] queue = new int[16];
+    long[] counts = new long[16];
+    counts[0] = Math.round(rootWeight / unit);
+    int size = 1;
+    for (int head = 0; head < size; head++) {
+      int node = queue[head];
+      int first = size;
+      int[] children = children(node);
+      for (int child : children) {
+        long count = Math.round(weights[child] / unit);
+        if (count <= 0) continue;
+        if (size == queue.length) {
+          queue = Arrays.copyOf(queue, 2 * size);
+          counts = Arrays.copyOf(counts, 2 * size);
+        }
+        counts[size] = count;
+        queue[size++] = child;
+      }
+      short numberOfChildren = (short) (size - first);
+      char token = 0 == node ? END_OF_STRING : tokens[node];
+      result.nodes.set(head, new NodeData(token, numberOfChildren, 0 < numberOfChildren ? first : -1, counts[head], -1));
+    }
+    return result.recomputeCursorDetails().recomputeGodparents();
+  }
+  
+  /**
+   * Drops the lightest nodes, keeping at most the given number.
+   *
+   * @param keep the number of nodes to keep, the root included
+   * @return the decaying char trie
+   */
+  public synchronized DecayingCharTrie prune(int keep) {
+    rescale();
+    double[] live = new double[liveNodes - 1];
+    int count = 0;
+    for (int node = 1; node < allocated; node++) {
+      if (isLive(node)) live[count++] = weights[node];
+    }
+    if (count < keep) return this;
+    Arrays.sort(live, 0, count);
+    // Keep the nodes strictly heavier than the heaviest one dropped, so ties go together
+    double threshold = keep <= 1 ? Double.POSITIVE_INFINITY : live[count - keep];
+    for (int token = 0; token <= Character.MAX_VALUE; token++) {
+      int child = rootChildren[token];
+      if (NONE != child && !(weights[child] > threshold)) {
+        rootChildren[token] = NONE;
+        release(child);
+      }
+    }
+    for (int node = 1; node < allocated; node++) {
+      if (!isLive(node)) continue;
+      int previous = NONE;
+      for (int child = firstChild[node]; NONE != child; ) {
+        int next = nextSibling[child];
+        if (weights[child] > threshold) {
+          previous = child;
+        }
+        else {
+          if (NONE == previous) firstChild[node] = next;
+          else nextSibling[previous] = next;
+          release(child);
+        }
+        child = next;
+      }
+    }
+    return this;
+  }
+  
+  private void walk(String document, double weight) {
+    int length = document.length();
+    rootWeight = Math.max(0, rootWeight + weight * (length + 1));
+    for (int start = 0; start <= length; start++) {
+      int node = 0;
+      for (int position = start; position < start + maxLevels; position++) {
+        char token = position < length ? document.charAt(position) : END_OF_STRING;
+        node = 0 < weight ? child(node, token) : find(node, token);
+        if (NONE == node) break;
+        weights[node] = Math.max(0, weights[node] + weight);
+        if (position >= length) break;
+      }
+    }
+  }
+  
+  private void evict() {
+    while (windowChars > windowSize && window.size() > 1) {
+      Entry oldest = window.removeFirst();
+      windowChars -= oldest.document.length() + 1;
+      walk(oldest.document, -scale(oldest.clock));
+    }
+  }
+  
+  /**
+   * Moves the origin to the present, so that stored weights are current weights.
+   */
+  private void rescale() {
+    if (origin == clock) return;
+    double factor = 1 / scale(clock);
+    rootWeight *= factor;
+    for (int node = 1; node < allocated; node++) weights[node] *= factor;
+    origin = clock;
+  }
+  
+  /**
+   * The weight of one count added at the given time, in stored units.
+   */
+  private double scale(long time) {
+    return Double.isInfinite(halfLife) ? 1 : Math.pow(2, (time - origin) / halfLife);
+  }
+  
+  private int find(int parent, char token) {
+    if (0 == parent) return rootChildren[token];
+    for (int child = firstChild[parent]; NONE != child; child = nextSibling[child]) {
+      if (tokens[child] == token) return child;
+    }
+    return NONE;
+  }
+  
+  private int child(int parent, char token) {
+    int child = find(parent, token);
+    if (NONE != child) return child;
+    child = allocate(token);
+    if (0 == parent) {
+      rootChildren[token] = child;
+    }
+    else {
+      nextSibling[child] = firstChild[parent];
+      firstChild[parent] = child;
+    }
+    return child;
+  }
+  
+  private int[] children(int node) {
+    int[] children = new int[16];
+    int count = 0;
+    if (0 == node) {
+      for (int token = 0; token <= Character.MAX_VALUE; token++) {
+        if (NONE == rootChildren[token]) continue;
+        if (count == children.length) children = Arrays.copyOf(children, 2 * count);
+        children[count++] = rootChildren[token];
+      }
+      return Arrays.copyOf(children, count);
+    }
+    for (int child = firstChild[node]; NONE != child; child = nextSibling[child]) {
+      if (count == children.length) children = Arrays.copyOf(children, 2 * count);
+      children[count++] = child;
+    }
+    int[] sorted = Arrays.stream(children, 0, count).boxed().sorted((a, b) -> Character.compare(tokens[a], tokens[b]))
+      .mapToInt(x -> x).toArray();
+    return sorted;
+  }
+  
+  private int allocate(char token) {
+    int node;
+    if (0 < freeCount) {
+      node = free[--freeCount];
+    }
+    else {
+      if (allocated == tokens.length) {
+        int capacity = 2 * allocated;
+        tokens = Arrays.copyOf(tokens, capacity);
+        weights = Arrays.copyOf(weights, capacity);
+        firstChild = Arrays.copyOf(firstChild, capacity);
+        nextSibling = Arrays.copyOf(nextSibling, capacity);
+      }
+      node = allocated++;
+    }
+    tokens[node] = token;
+    weights[node] = 0;
+    firstChild[node] = NONE;
+    nextSibling[node] = NONE;
+    liveNodes++;
+    return node;
+  }
+  
+  /**
+   * Frees a node and its subtree.
+   */
+  private void release(int node) {
+    for (int child = firstChild[node]; NONE != child; ) {
+      int next = nextSibling[child];
+      release(child);
+      child = next;
+    }
+    if (freeCount == free.length) free = Arrays.copyOf(free, 2 * freeCount);
+    free[freeCount++] = node;
+    // A freed node has a negative weight, which no live node has
+    weights[node] = -1;
+    firstChild[node] = NONE;
+    liveNodes--;
+  }
+  
+  private boolean isLive(int node) {
+    return weights[node] >= 0;
+  }
+  
+  private static final class Entry {
+    final String document;
+    final long clock;
+    
+    private Entry(String document, long clock) {
+      this.document = document;
+      this.clock = clock;
+    }
+  }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2018 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.text;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Codec for the compressed document-id posting lists held by a CharTrieIndex. Each list is either a sequence of
+ * delta-encoded varints or, when the ids are dense, a bitmap over the range they span; a leading byte selects the
+ * encoding.
+ */
+final class DocumentPostings {
+  
+  private static final byte DELTAS = 0;
+  private static final byte BITMAP = 1;
+  
+  private DocumentPostings() {
+  }
+  
+  /**
+   * Sorts and de-duplicates document ids in place.
+   *
+   * @param ids the ids
+   * @return the number of distinct ids, which occupy the head of the array
+   */
+  static int distinct(int[] ids) {
+    Arrays.sort(ids);
+    int count = 0;
+    for (int i = 0; i < ids.length; i++) {
+      if (0 == count || ids[count - 1] != ids[i]) ids[count++] = ids[i];
+    }
+    return count;
+  }
+  
+  /**
+   * Encodes a sorted list of distinct document ids.
+   *
+   * @param ids   the ids
+   * @param count the count
+   * @return the encoded posting list
+   */
+  static byte[] encode(int[] ids, int count) {
+    if (0 == count) return new byte[]{DELTAS};
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    int base = ids[0];
+    int bitmapBytes = (ids[count - 1] - base) / 8 + 1;
+    // Deltas cost at least one byte each, so the bitmap wins once ids average under 8 apart
+    if (bitmapBytes < count) {
+      buffer.write(BITMAP);
+      writeVarInt(buffer, base);
+      byte[] bitmap = new byte[bitmapBytes];
+      for (int i = 0; i < count; i++) {
+        int bit = ids[i] - base;
+        bitmap[bit / 8] |= 1 << (bit % 8);
+      }
+      buffer.write(bitmap, 0, bitmap.length);
+    }
+    else {
+      buffer.write(DELTAS);
+      int previous = 0;
+      for (int i = 0; i < count; i++) {
+        writeVarInt(buffer, ids[i] - previous);
+        previous = ids[i];
+      }
+    }
+    return buffer.toByteArray();
+  }
+  
+  /**
+   * Decodes a posting list.
+   *
+   * @param data  the data
+   * @param from  the offset of the list
+   * @param to    the offset just past the list
+   * @param count the number of ids in the list
+   * @return the sorted document ids
+   */
+  static int[] decode(byte[] data, int from, int to, int count) {
+    int[] ids = new int[count];
+    int[] position = {from + 1};
+    if (BITMAP == data[from]) {
+      int base = readVarInt(data, position);
+      int i = 0;
+      for (int offset = position[0]; offset < to; offset++) {
+        int bits = data[offset] & 0xFF;
+        while (0 != bits) {
+          int bit = Integer.numberOfTrailingZeros(bits);
+          ids[i++] = base + (offset - position[0]) * 8 + bit;
+          bits &= bits - 1;
+        }
+      }
+    }
+    else {
+      int previous = 0;
+      for (int i = 0; i < count; i++) {
+        previous += readVarInt(data, position);
+        ids[i] = previous;
+      }
+    }
+    return ids;
+  }
+  
+  /**
+   * Decodes a posting list into a bit set.
+   *
+   * @param data   the data
+   * @param from   the offset of the list
+   * @param to     the offset just past the list
+   * @param count  the number of ids in the list
+   * @param result the bit set to populate
+   * @return the bit set
+   */
+  static BitSet decode(byte[] data, int from, int to, int count, BitSet result) {
+    if (BITMAP == data[from]) {
+      int[] position = {from + 1};
+      int base = readVarInt(data, position);
+      BitSet bitmap = BitSet.valueOf(Arrays.copyOfRange(data, position[0], to));
+      for (int bit = bitmap.nextSetBit(0); bit >= 0; bit = bitmap.nextSetBit(bit + 1)) {
+        result.set(base + bit);
+      }
+    }
+    else {
+      for (int id : decode(data, from, to, count)) result.set(id);
+    }
+    return result;
+  }
+  
+  /**
+   * Tests whether a posting list contains a document.
+   *
+   * @param data       the data
+   * @param from       the offset of the list
+   * @param to         the offset just past the list
+   * @param documentId the document id
+   * @return the boolean
+   */
+  static boolean contains(byte[] data, int from, int to, int documentId) {
+    int[] position = {from + 1};
+    if (BITMAP == data[from]) {
+      int bit = documentId - readVarInt(data, position);
+      int offset = position[0] + bit / 8;
+      return bit >= 0 && offset < to && 0 != (data[offset] & (1 << (bit % 8)));
+    }
+    else {
+      int previous = 0;
+      while (position[0] < to) {
+        previous += readVarInt(data, position);
+        if (previous >= documentId) return previous == documentId;
+      }
+      return false;
+    }
+  }
+  
+  private static void writeVarInt(ByteArrayOutputStream buffer, int value) {
+    while (0 != (value & ~0x7F)) {
+      buffer.write((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    buffer.write(value);
+  }
+  
+  private static int readVarInt(byte[] data, int[] position) {
+    int value = 0;
+    int shift = 0;
+    while (true) {
+      byte b = data[position[0]++];
+      value |= (b & 0x7F) << shift;
+      if (0 == (b & 0x80)) return value;
+      shift += 7;
+    }
+  }
+}
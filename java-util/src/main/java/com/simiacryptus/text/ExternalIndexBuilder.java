@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2018 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.text;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Builds a CharTrie over a corpus too large to index in memory. Every cursor position is written to disk as the window
+ * of at most maxLevels characters it would read, partitioned by the window's leading characters into run files. Each
+ * run is then indexed on its own and the partition tries are summed under their shared top levels. Runs estimated to
+ * exceed the memory budget are re-partitioned on one more leading character before indexing.
+ * <p>
+ * Because a partition cannot see the suffix links of nodes outside it, nodes are split when their own count exceeds
+ * minWeight rather than their godparent's; the result is the subtree of CharTrieIndex.index(maxLevels, minWeight)
+ * selected by that stricter rule, with identical counts.
+ */
+public class ExternalIndexBuilder {
+  
+  private final File workDir;
+  private final int maxLevels;
+  private final int minWeight;
+  private final long memoryBudget;
+  private final Map<String, Long> prefixCounts = new HashMap<>();
+  private final RunWriter runs;
+  private long windowCount = 0;
+  
+  /**
+   * Instantiates a new External index builder.
+   *
+   * @param workDir      the directory to hold run files
+   * @param maxLevels    the max levels
+   * @param minWeight    the min weight
+   * @param memoryBudget the approximate number of bytes to use for buffering and indexing
+   */
+  public ExternalIndexBuilder(File workDir, int maxLevels, int minWeight, long memoryBudget) {
+    if (maxLevels < 1 || maxLevels > 1 << 14) throw new IllegalArgumentException("maxLevels must be in [1, 16384]");
+    this.workDir = workDir;
+    this.maxLevels = maxLevels;
+    this.minWeight = minWeight;
+    this.memoryBudget = memoryBudget;
+    workDir.mkdirs();
+    this.runs = new RunWriter(1);
+  }
+  
+  /**
+   * Adds a document to be indexed.
+   *
+   * @param document the document
+   * @return this external index builder
+   */
+  public synchronized ExternalIndexBuilder addDocument(String document) {
+    for (int position = 0; position <= document.length(); position++) {
+      runs.write(document.substring(position, Math.min(document.length(), position + maxLevels)));
+    }
+    windowCount += document.length() + 1;
+    return this;
+  }
+  
+  /**
+   * Indexes the spilled runs and combines them into one trie. Run files are deleted as they are consumed.
+   *
+   * @return the char trie
+   */
+  public synchronized CharTrie build() {
+    runs.flush();
+    prefixCounts.put("", windowCount);
+    List<CharTrie> tries = new ArrayList<>();
+    ArrayDeque<Partition> queue = new ArrayDeque<>(runs.getPartitions());
+    while (!queue.isEmpty()) {
+      Partition partition = queue.poll();
+      if (partition.getEstimatedMemory() > memoryBudget && partition.key.length() == partition.prefixLength && partition.prefixLength < maxLevels) {
+        queue.addAll(repartition(partition));
+      }
+      else {
+        tries.add(index(partition));
+      }
+    }
+    while (tries.size() > 1) {
+      tries = merge(tries);
+    }
+    return tries.isEmpty() ? new CharTrie() : tries.get(0);
+  }
+  
+  /**
+   * Sums the tries pairwise, halving their number.
+   */
+  private List<CharTrie> merge(List<CharTrie> tries) {
+    return IntStream.range(0, (tries.size() + 1) / 2).parallel().mapToObj(i -> {
+      CharTrie left = tries.get(2 * i);
+      return 2 * i + 1 < tries.size() ? left.add(tries.get(2 * i + 1)) : left;
+    }).collect(Collectors.toList());
+  }
+  
+  private List<Partition> repartition(Partition partition) {
+    prefixCounts.put(partition.key, partition.windows);
+    RunWriter writer = new RunWriter(partition.prefixLength + 1);
+    partition.read(writer::write);
+    writer.flush();
+    partition.file.delete();
+    return writer.getPartitions();
+  }
+  
+  private CharTrie index(Partition partition) {
+    CharTrieIndex trie = new CharTrieIndex();
+    partition.read(trie::addDictionary);
+    AtomicInteger numberSplit = new AtomicInteger(0);
+    int depth = -1;
+    do {
+      numberSplit.set(0);
+      if (0 == ++depth) {
+        numberSplit.incrementAndGet();
+        trie.root().split();
+      }
+      else {
+        trie.root().streamDecendents(depth).forEach(node -> {
+          if (node.getDepth() < maxLevels && node.getChar() != NodewalkerCodec.END_OF_STRING && getWeight(partition, node) > minWeight) {
+            ((IndexNode) node).split();
+            numberSplit.incrementAndGet();
+          }
+        });
+      }
+    } while (numberSplit.get() > 0);
+    partition.file.delete();
+    return trie.truncate();
+  }
+  
+  /**
+   * Counts within a partition are only complete for strings at least as long as its prefix; shorter strings belong to
+   * the shared top, whose counts were taken as the corpus was partitioned.
+   */
+  private long getWeight(Partition partition, TrieNode node) {
+    if (node.getDepth() < partition.prefixLength) return prefixCounts.getOrDefault(node.getRawString(), 0L);
+    return node.getCursorCount();
+  }
+  
+  private static class Partition {
+    /**
+     * The leading characters shared by every window in the run; shorter than prefixLength only when every window
+     * equals it.
+     */
+    final String key;
+    final int prefixLength;
+    final File file;
+    long windows = 0;
+    long chars = 0;
+    
+    private Partition(String key, int prefixLength, File file) {
+      this.key = key;
+      this.prefixLength = prefixLength;
+      this.file = file;
+    }
+    
+    /**
+     * Bounds the heap needed to index the run: the packed windows and their cursors, plus at most one node (with
+     * parent and godparent indices) per character.
+     */
+    long getEstimatedMemory() {
+      return chars * (2 + 32) + windows * (2 + 4);
+    }
+    
+    void read(Consumer<String> consumer) {
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+        for (long i = 0; i < windows; i++) {
+          consumer.accept(in.readUTF());
+        }
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+  
+  private class RunWriter {
+    private final int prefixLength;
+    private final Map<String, Partition> partitions = new TreeMap<>();
+    private final Map<String, ByteArrayOutputStream> buffers = new HashMap<>();
+    private long buffered = 0;
+    
+    private RunWriter(int prefixLength) {
+      this.prefixLength = prefixLength;
+    }
+    
+    void write(String window) {
+      String key = window.substring(0, Math.min(prefixLength, window.length()));
+      Partition partition = partitions.computeIfAbsent(key, k -> {
+        File file = getFile(k);
+        file.delete();
+        return new Partition(k, prefixLength, file);
+      });
+      partition.windows++;
+      partition.chars += window.length();
+      ByteArrayOutputStream buffer = buffers.computeIfAbsent(key, k -> new ByteArrayOutputStream());
+      int before = buffer.size();
+      try {
+        new DataOutputStream(buffer).writeUTF(window);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      buffered += buffer.size() - before;
+      if (buffered > memoryBudget / 2) flush();
+    }
+    
+    void flush() {
+      for (Map.Entry<String, ByteArrayOutputStream> e : buffers.entrySet()) {
+        try (OutputStream out = new FileOutputStream(partitions.get(e.getKey()).file, true)) {
+          e.getValue().writeTo(out);
+        } catch (IOException ex) {
+          throw new RuntimeException(ex);
+        }
+      }
+      buffers.clear();
+      buffered = 0;
+    }
+    
+    private File getFile(String key) {
+      String name = key.chars().mapToObj(c -> String.format("%04x", c)).collect(Collectors.joining("-"));
+      return new File(workDir, String.format("run-%d-%s.bin", prefixLength, name.isEmpty() ? "eos" : name));
+    }
+    
+    List<Partition> getPartitions() {
+      return new ArrayList<>(partitions.values());
+    }
+  }
+}
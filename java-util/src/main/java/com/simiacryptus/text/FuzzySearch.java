@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2018 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.text;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Finds the words of a trie within an edit distance of a query, as CharTrie.fuzzyMatch. The trie is walked depth-first
+ * in step with a Levenshtein automaton for the query, whose state at a node is the row of edit distances from the
+ * node's string to each prefix of the query, capped at maxEdits + 1. A child's row follows from its parent's and its
+ * token, and a subtree is skipped once no entry of its row is within maxEdits, since no extension of its string can
+ * then come closer to the query.
+ * <p>
+ * A word is a string ending in an END_OF_STRING node, or at a leaf of a depth-limited trie; its distance is the last
+ * entry of the row.
+ */
+final class FuzzySearch {
+  
+  private final CharTrie trie;
+  private final String query;
+  private final int maxEdits;
+  
+  /**
+   * Instantiates a new Fuzzy search.
+   *
+   * @param trie     the trie
+   * @param query    the query
+   * @param maxEdits the max edits
+   */
+  FuzzySearch(CharTrie trie, String query, int maxEdits) {
+    if (maxEdits < 0) throw new IllegalArgumentException("maxEdits must not be negative");
+    this.trie = trie;
+    this.query = query;
+    this.maxEdits = maxEdits;
+  }
+  
+  /**
+   * Finds the matching words.
+   *
+   * @return the word nodes, most frequent first, ties going to the nearer word
+   */
+  List<TrieNode> search() {
+    return collect().stream().sorted(Comparator.<Match>comparingLong(x -> -x.node.getCursorCount())
+      .thenComparingInt(x -> x.distance).thenComparingInt(x -> x.node.index))
+      .map(x -> x.node).collect(Collectors.toList());
+  }
+  
+  /**
+   * Finds the nearest matching word in a single walk.
+   *
+   * @return the word node at the least distance, ties going to the more frequent word; null if none is within maxEdits
+   */
+  TrieNode nearest() {
+    return collect().stream().min(Comparator.<Match>comparingInt(x -> x.distance)
+      .thenComparingLong(x -> -x.node.getCursorCount()).thenComparingInt(x -> x.node.index))
+      .map(x -> x.node).orElse(null);
+  }
+  
+  private List<Match> collect() {
+    int length = query.length();
+    List<Match> matches = new ArrayList<>();
+    ArrayDeque<Frame> stack = new ArrayDeque<>();
+    int[] first = new int[length + 1];
+    for (int j = 0; j <= length; j++) first[j] = Math.min(j, maxEdits + 1);
+    stack.push(new Frame(trie.root(), first, 0));
+    while (!stack.isEmpty()) {
+      Frame frame = stack.pop();
+      NodeData data = frame.node.getData();
+      int distance = frame.row[length];
+      if (data.firstChildIndex < 0 || data.numberOfChildren <= 0) {
+        if (0 < frame.depth && distance <= maxEdits) matches.add(new Match(frame.node, distance));
+        continue;
+      }
+      for (int index = data.firstChildIndex; index < data.firstChildIndex + data.numberOfChildren; index++) {
+        char token = trie.nodes.get(index).token;
+        if (token == NodewalkerCodec.END_OF_STRING) {
+          if (distance <= maxEdits) matches.add(new Match(new TrieNode(trie, index, frame.node), distance));
+        }
+        else if (token != NodewalkerCodec.FALLBACK && token != NodewalkerCodec.ESCAPE) {
+          int[] row = step(frame.row, token, frame.depth + 1);
+          if (null != row) stack.push(new Frame(new TrieNode(trie, index, frame.node), row, frame.depth + 1));
+        }
+      }
+    }
+    return matches;
+  }
+  
+  /**
+   * Advances the automaton by a token.
+   *
+   * @return the next row, or null if no entry is within maxEdits
+   */
+  private int[] step(int[] row, char token, int depth) {
+    int cap = maxEdits + 1;
+    int[] next = new int[row.length];
+    next[0] = Math.min(depth, cap);
+    int min = next[0];
+    for (int j = 1; j < row.length; j++) {
+      int substitution = row[j - 1] + (query.charAt(j - 1) == token ? 0 : 1);
+      next[j] = Math.min(cap, Math.min(substitution, Math.min(row[j], next[j - 1]) + 1));
+      min = Math.min(min, next[j]);
+    }
+    return min <= maxEdits ? next : null;
+  }
+  
+  private static final class Frame {
+    final TrieNode node;
+    final int[] row;
+    final int depth;
+    
+    private Frame(TrieNode node, int[] row, int depth) {
+      this.node = node;
+      this.row = row;
+      this.depth = depth;
+    }
+  }
+  
+  private static final class Match {
+    final TrieNode node;
+    final int distance;
+    
+    private Match(TrieNode node, int distance) {
+      this.node = node;
+      this.distance = distance;
+    }
+  }
+}
@@ -19,13 +19,10 @@
 
 package com.simiacryptus.text;
 
-import com.simiacryptus.util.data.SerialArrayList;
-
 import java.util.*;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
-import java.util.stream.LongStream;
 import java.util.stream.Stream;
 
 /**
@@ -64,14 +61,66 @@ public class IndexNode extends TrieNode {
     return this.getCursors().collect(Collectors.groupingBy((Cursor x) -> x.getDocument()));
   }
   
+  /**
+   * Gets the number of distinct documents containing this node's string.
+   *
+   * @return the document frequency
+   */
+  public int getDocumentFrequency() {
+    return indexedTrie().documentFrequency[index];
+  }
+  
+  /**
+   * Gets the ids of the documents containing this node's string, in ascending order.
+   *
+   * @return the document ids
+   */
+  public IntStream getDocumentIds() {
+    CharTrieIndex trie = indexedTrie();
+    return IntStream.of(DocumentPostings.decode(trie.postings, trie.postingOffsets[index], trie.postingOffsets[index + 1], trie.documentFrequency[index]));
+  }
+  
+  /**
+   * Gets the documents containing this node's string as a bit set of document ids.
+   *
+   * @return the documents
+   */
+  public BitSet getDocuments() {
+    CharTrieIndex trie = indexedTrie();
+    return DocumentPostings.decode(trie.postings, trie.postingOffsets[index], trie.postingOffsets[index + 1], trie.documentFrequency[index], new BitSet());
+  }
+  
+  /**
+   * Tests whether a document contains this node's string.
+   *
+   * @param documentId the document id
+   * @return the boolean
+   */
+  public boolean containsDocument(int documentId) {
+    CharTrieIndex trie = indexedTrie();
+    return DocumentPostings.contains(trie.postings, trie.postingOffsets[index], trie.postingOffsets[index + 1], documentId);
+  }
+  
+  private CharTrieIndex indexedTrie() {
+    CharTrieIndex trie = (CharTrieIndex) this.trie;
+    if (null == trie.documentFrequency || index >= trie.documentFrequency.length) {
+      throw new IllegalStateException("Document postings are not available until the index is built");
+    }
+    return trie;
+  }
+  
   /**
    * Gets cursors.
    *
    * @return the cursors
    */
   public Stream<Cursor> getCursors() {
-    return LongStream.range(0, getData().cursorCount).mapToObj(i -> {
-      return new Cursor((CharTrieIndex) this.trie, ((CharTrieIndex) this.trie).cursors.get((int) (i + getData().firstCursorIndex)), getDepth());
+    CharTrieIndex trieIndex = (CharTrieIndex) this.trie;
+    NodeData data = getData();
+    int firstSlot = trieIndex.cursorSlot(data.firstCursorIndex);
+    int endSlot = trieIndex.cursorSlot(data.firstCursorIndex + data.cursorCount);
+    return IntStream.range(firstSlot, endSlot).mapToObj(i -> {
+      return new Cursor(trieIndex, trieIndex.cursors.get(i), getDepth());
     });
   }
   
@@ -82,29 +131,50 @@ public class IndexNode extends TrieNode {
    */
   public TrieNode split() {
     if (getData().firstChildIndex < 0) {
-      TreeMap<Character, SerialArrayList<CursorData>> sortedChildren = new TreeMap<>(getCursors().parallel()
-        .collect(Collectors.groupingBy(y -> y.next().getToken(),
-          Collectors.reducing(new SerialArrayList<>(CursorType.INSTANCE, 0),
-            cursor -> new SerialArrayList<>(CursorType.INSTANCE, cursor.data),
-            (left, right) -> left.add(right)))));
-      long cursorWriteIndex = getData().firstCursorIndex;
-      //System.err.println(String.format("Splitting %s into children: %s", getDebugString(), sortedChildren.keySet()));
-      ArrayList<NodeData> childNodes = new ArrayList<>(sortedChildren.size());
-      for (Map.Entry<Character, SerialArrayList<CursorData>> e : sortedChildren.entrySet()) {
-        int length = e.getValue().length();
-        ((CharTrieIndex) this.trie).cursors.putAll(e.getValue(), (int) cursorWriteIndex);
-        childNodes.add(new NodeData(e.getKey(), (short) -1, -1, length, cursorWriteIndex));
-        cursorWriteIndex += length;
+      CharTrieIndex trieIndex = (CharTrieIndex) this.trie;
+      NodeData data = getData();
+      int firstCursor = trieIndex.cursorSlot(data.firstCursorIndex);
+      int cursorCount = trieIndex.cursorSlot(data.firstCursorIndex + data.cursorCount) - firstCursor;
+      // Weighted cursors carry their weight into the child counts and ranges; unweighted, ranges are cursor slots
+      CursorOffsets offsets = trieIndex.cursorOffsets;
+      short depth = getDepth();
+      // Sort cursors by their next token, keyed with their current order so that the sort is stable
+      long[] keys = new long[cursorCount];
+      int[] positions = new int[cursorCount];
+      for (int i = 0; i < cursorCount; i++) {
+        positions[i] = trieIndex.cursors.get(firstCursor + i).position;
+        keys[i] = ((long) trieIndex.charAt(positions[i], depth + 1) << 32) | i;
+      }
+      if (cursorCount > 1 << 16) Arrays.parallelSort(keys);
+      else Arrays.sort(keys);
+      ArrayList<CursorData> sortedCursors = new ArrayList<>(cursorCount);
+      ArrayList<NodeData> childNodes = new ArrayList<>();
+      long[] sortedOffsets = null == offsets ? null : new long[cursorCount];
+      long cursorIndex = data.firstCursorIndex;
+      for (int i = 0; i < cursorCount; i++) {
+        char token = (char) (keys[i] >>> 32);
+        if (childNodes.isEmpty() || childNodes.get(childNodes.size() - 1).token != token) {
+          childNodes.add(new NodeData(token, (short) -1, -1, 0, cursorIndex));
+        }
+        int from = (int) keys[i];
+        long weight = null == offsets ? 1 : offsets.get(firstCursor + from + 1) - offsets.get(firstCursor + from);
+        if (null != sortedOffsets) sortedOffsets[i] = cursorIndex;
+        childNodes.get(childNodes.size() - 1).cursorCount += weight;
+        cursorIndex += weight;
+        sortedCursors.add(new CursorData(positions[from]));
       }
+      trieIndex.cursors.putAll(sortedCursors, firstCursor);
+      // Offsets only move within this node's range, so concurrent searches for other nodes' bounds are unaffected
+      if (null != sortedOffsets) offsets.putAll(sortedOffsets, firstCursor);
       int firstChildIndex = this.trie.nodes.addAll(childNodes);
       short size = (short) childNodes.size();
-      trie.ensureParentIndexCapacity(firstChildIndex, size, index);
-      this.trie.nodes.update(index, data -> {
-        return data
+      trie.ensureParentIndexCapacity(firstChildIndex, size, this.index);
+      this.trie.nodes.update(this.index, node -> {
+        return node
           .setFirstChildIndex(firstChildIndex)
           .setNumberOfChildren(size);
       });
-      return new IndexNode(this.trie, getDepth(), index, getParent());
+      return new IndexNode(this.trie, getDepth(), this.index, getParent());
     }
     else {
       return this;
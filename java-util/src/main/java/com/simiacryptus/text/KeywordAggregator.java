@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2018 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.text;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Merges overlapping keywords, as TextAnalysis.keywords, summing their counts. A word is merged into the first entry
+ * it combines with, on either side; the merged string is then added in turn, so merges cascade until the entry
+ * overlaps nothing and no two entries left combine.
+ * <p>
+ * Any overlap TextAnalysis.combine accepts spans at least minOverlap characters, so it shares a substring of that
+ * length with the entry. Entries are indexed by these grams, and a word is only combined with the entries sharing one
+ * of its own, rather than with every entry on repeated passes. Merged-away entries stay in the index and are skipped.
+ */
+final class KeywordAggregator {
+  
+  private final int minOverlap;
+  private final List<String> keys = new ArrayList<>();
+  private final List<Long> counts = new ArrayList<>();
+  private final BitSet live = new BitSet();
+  private final Map<String, List<Integer>> grams = new HashMap<>();
+  
+  /**
+   * Instantiates a new Keyword aggregator.
+   *
+   * @param minOverlap the min overlap
+   */
+  KeywordAggregator(int minOverlap) {
+    if (minOverlap < 1) throw new IllegalArgumentException("minOverlap must be positive");
+    this.minOverlap = minOverlap;
+  }
+  
+  /**
+   * Adds a word.
+   *
+   * @param word  the word
+   * @param count the count
+   */
+  void add(String word, long count) {
+    while (true) {
+      int match = -1;
+      String combined = null;
+      BitSet candidates = candidates(word);
+      for (int entry = candidates.nextSetBit(0); entry >= 0; entry = candidates.nextSetBit(entry + 1)) {
+        combined = TextAnalysis.combine(word, keys.get(entry), minOverlap);
+        if (null == combined) combined = TextAnalysis.combine(keys.get(entry), word, minOverlap);
+        if (null != combined) {
+          match = entry;
+          break;
+        }
+      }
+      if (match < 0) {
+        insert(word, count);
+        return;
+      }
+      live.clear(match);
+      count += counts.get(match);
+      word = combined;
+    }
+  }
+  
+  /**
+   * Gets the merged counts.
+   *
+   * @return the counts
+   */
+  Map<String, Long> getCounts() {
+    Map<String, Long> map = new HashMap<>();
+    for (int entry = live.nextSetBit(0); entry >= 0; entry = live.nextSetBit(entry + 1)) {
+      map.merge(keys.get(entry), counts.get(entry), Long::sum);
+    }
+    return map;
+  }
+  
+  private BitSet candidates(String word) {
+    BitSet candidates = new BitSet();
+    // combine accepts neither side shorter than minOverlap
+    for (int i = 0; i + minOverlap <= word.length(); i++) {
+      List<Integer> entries = grams.get(word.substring(i, i + minOverlap));
+      if (null != entries) for (int entry : entries) candidates.set(entry);
+    }
+    candidates.and(live);
+    return candidates;
+  }
+  
+  private void insert(String word, long count) {
+    int entry = keys.size();
+    keys.add(word);
+    counts.add(count);
+    live.set(entry);
+    for (int i = 0; i + minOverlap <= word.length(); i++) {
+      List<Integer> entries = grams.computeIfAbsent(word.substring(i, i + minOverlap), x -> new ArrayList<>());
+      if (entries.isEmpty() || entries.get(entries.size() - 1) != entry) entries.add(entry);
+    }
+  }
+}
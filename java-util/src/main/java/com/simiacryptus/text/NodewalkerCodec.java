@@ -19,6 +19,7 @@
 
 package com.simiacryptus.text;
 
+import com.simiacryptus.util.MonitoredItem;
 import com.simiacryptus.util.binary.BitInputStream;
 import com.simiacryptus.util.binary.BitOutputStream;
 import com.simiacryptus.util.binary.Bits;
@@ -28,12 +29,14 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Optional;
 
 /**
  * The type Nodewalker codec.
  */
-public class NodewalkerCodec {
+public class NodewalkerCodec implements MonitoredItem {
   /**
    * The constant ESCAPE.
    */
@@ -55,6 +58,18 @@ public class NodewalkerCodec {
    * The Verbose.
    */
   protected PrintStream verbose = null;
+  /**
+   * The counters for strings encoded by this codec, shared by all the codecs of a trie.
+   */
+  protected final CodecMetrics encodeMetrics;
+  /**
+   * The counters for strings decoded by this codec, shared by all the codecs of a trie.
+   */
+  protected final CodecMetrics decodeMetrics;
+  /**
+   * The width of literal characters, in bits.
+   */
+  protected int literalBits = 16;
   
   /**
    * Instantiates a new Nodewalker codec.
@@ -62,8 +77,21 @@ public class NodewalkerCodec {
    * @param inner the inner
    */
   NodewalkerCodec(CharTrie inner) {
+    this(inner, new CodecMetrics(), new CodecMetrics());
+  }
+  
+  /**
+   * Instantiates a new Nodewalker codec recording into the given counters.
+   *
+   * @param inner         the inner
+   * @param encodeMetrics the encode metrics
+   * @param decodeMetrics the decode metrics
+   */
+  NodewalkerCodec(CharTrie inner, CodecMetrics encodeMetrics, CodecMetrics decodeMetrics) {
     super();
     this.inner = inner;
+    this.encodeMetrics = encodeMetrics;
+    this.decodeMetrics = decodeMetrics;
   }
   
   /**
@@ -99,6 +127,27 @@ public class NodewalkerCodec {
     return this;
   }
   
+  /**
+   * Sets literal bits: the width of characters written raw because no context predicts them, which may be narrowed to
+   * 8 for tries over byte chars. Both ends must agree, and wider literals cannot be encoded.
+   *
+   * @param literalBits the literal bits
+   * @return the nodewalker codec
+   */
+  public NodewalkerCodec setLiteralBits(int literalBits) {
+    if (literalBits < 1 || literalBits > 16) throw new IllegalArgumentException("literalBits must be between 1 and 16");
+    this.literalBits = literalBits;
+    return this;
+  }
+  
+  @Override
+  public Map<String, Object> getMetrics() {
+    HashMap<String, Object> map = new HashMap<>();
+    map.put("encode", encodeMetrics.getMetrics());
+    map.put("decode", decodeMetrics.getMetrics());
+    return map;
+  }
+  
   /**
    * Write forward.
    *
@@ -114,6 +163,7 @@ public class NodewalkerCodec {
       }
       encoder.out.writeVarShort(count, 3);
       encoder.out.write(bits);
+      encodeMetrics.recordForward(encoder.fromNode.getDepth());
     }
     else {
       assert (0 == encoder.node.index);
@@ -140,6 +190,7 @@ public class NodewalkerCodec {
         verbose.println(String.format("Read %s forward from %s to %s = %s", numberOfTokens, decoder.node.getDebugString(), toNode.getDebugString(), bits));
       }
       decoder.in.expect(bits);
+      decodeMetrics.recordForward(decoder.node.getDepth());
       decoder.out.append(str);
       decoder.node = toNode;
     }
@@ -182,6 +233,7 @@ public class NodewalkerCodec {
       verbose.println(String.format("Backing up %s from from %s to %s", backupSteps, encoder.fromNode.getDebugString(), null == encoder.node ? null : encoder.node.getDebugString()));
     }
     encoder.out.writeVarShort(backupSteps, 3);
+    if (0 < backupSteps) encodeMetrics.recordBackup(backupSteps);
     return child;
   }
   
@@ -199,6 +251,7 @@ public class NodewalkerCodec {
     for (int i = 0; i < numberOfBackupSteps; i++) {
       decoder.node = decoder.node.godparent();
     }
+    decodeMetrics.recordBackup(numberOfBackupSteps);
     if (verbose != null) {
       verbose.println(String.format("Backing up %s from from %s to %s", numberOfBackupSteps, fromNode.getDebugString(), decoder.node.getDebugString()));
     }
@@ -215,8 +268,10 @@ public class NodewalkerCodec {
     if (verbose != null) {
       verbose.println(String.format("Writing forward to end from %s to %s", encoder.fromNode.getDebugString(), encoder.node.getDebugString()));
     }
-    encoder.out.writeVarShort((short) (encoder.node.getDepth() - encoder.fromNode.getDepth()), 3);
+    short count = (short) (encoder.node.getDepth() - encoder.fromNode.getDepth());
+    encoder.out.writeVarShort(count, 3);
     encoder.out.write(encoder.fromNode.bitsTo(encoder.node));
+    if (0 < count) encodeMetrics.recordForward(encoder.fromNode.getDepth());
     encoder.out.writeVarShort((short) 0, 3);
   }
   
@@ -235,7 +290,7 @@ public class NodewalkerCodec {
     /**
      * The In.
      */
-    protected BitInputStream in = new BitInputStream(new ByteArrayInputStream(data));
+    protected BitInputStream in;
     /**
      * The Out.
      */
@@ -254,6 +309,7 @@ public class NodewalkerCodec {
     protected Decoder(byte[] data, int context) {
       this.data = data;
       this.context = context;
+      this.in = new BitInputStream(new ByteArrayInputStream(data));
     }
     
     /**
@@ -265,14 +321,16 @@ public class NodewalkerCodec {
       try {
         while (true) {
           if (null == node) {
-            char c = in.readChar();
+            char c = (char) in.read(literalBits).toLong();
             out.append(c);
             if (verbose != null) verbose.println(String.format("Literal token %s", c));
+            decodeMetrics.recordLiteral();
             node = inner.root();
           }
           readForward(this);
           if (readBackup(this)) break;
         }
+        decodeMetrics.recordString(out.length(), 8L * data.length - in.availible());
         return out.toString();
       } catch (IOException e) {
         throw new RuntimeException(e);
@@ -336,7 +394,9 @@ public class NodewalkerCodec {
             child = writeBackup(this, token);
             if (null == node) {
               if (verbose != null) verbose.println(String.format("Literal token %s", token));
-              out.write(token);
+              encodeMetrics.recordLiteral();
+              if (token >= 1 << literalBits) throw new IllegalArgumentException("Literal wider than " + literalBits + " bits: " + (int) token);
+              out.write(new Bits(token, literalBits));
               fromNode = inner.root();
               node = fromNode;
             }
@@ -352,6 +412,7 @@ public class NodewalkerCodec {
         writeTerminal(this);
         out.flush();
         Bits bits = new Bits(buffer.toByteArray(), out.getTotalBitsWritten());
+        encodeMetrics.recordString(text.length(), out.getTotalBitsWritten());
         return bits;
       } catch (IOException e) {
         throw new RuntimeException(e);
@@ -19,6 +19,7 @@
 
 package com.simiacryptus.text;
 
+import com.simiacryptus.util.MonitoredItem;
 import com.simiacryptus.util.binary.BitInputStream;
 import com.simiacryptus.util.binary.BitOutputStream;
 import com.simiacryptus.util.binary.Bits;
@@ -27,12 +28,14 @@ import com.simiacryptus.util.binary.Interval;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Optional;
 
 /**
  * The type Ppm codec.
  */
-public class PPMCodec {
+public class PPMCodec implements MonitoredItem {
   /**
    * The constant ESCAPE.
    */
@@ -53,6 +56,18 @@ public class PPMCodec {
    * The Verbose.
    */
   public boolean verbose = false;
+  /**
+   * The counters for strings encoded by this codec.
+   */
+  final CodecMetrics encodeMetrics = new CodecMetrics();
+  /**
+   * The counters for strings decoded by this codec.
+   */
+  final CodecMetrics decodeMetrics = new CodecMetrics();
+  /**
+   * The width of literal characters, in bits.
+   */
+  int literalBits = 16;
   
   /**
    * Instantiates a new Ppm codec.
@@ -64,6 +79,27 @@ public class PPMCodec {
     this.inner = inner;
   }
   
+  /**
+   * Sets literal bits: the width of characters escaped because the model has never seen them, which may be narrowed to
+   * 8 for tries over byte chars. Both ends must agree, and wider literals cannot be encoded.
+   *
+   * @param literalBits the literal bits
+   * @return the ppm codec
+   */
+  public PPMCodec setLiteralBits(int literalBits) {
+    if (literalBits < 1 || literalBits > 16) throw new IllegalArgumentException("literalBits must be between 1 and 16");
+    this.literalBits = literalBits;
+    return this;
+  }
+  
+  @Override
+  public Map<String, Object> getMetrics() {
+    HashMap<String, Object> map = new HashMap<>();
+    map.put("encode", encodeMetrics.getMetrics());
+    map.put("decode", decodeMetrics.getMetrics());
+    return map;
+  }
+  
   private static String getRight(String str, int count) {
     int newLen = Math.min(count, str.length());
     int prefixFrom = Math.max(0, str.length() - newLen);
@@ -102,6 +138,7 @@ public class PPMCodec {
           newSegment += END_OF_STRING;
         }
         if (!newSegment.isEmpty()) {
+          decodeMetrics.recordForward(fromNode.getDepth());
           if (newSegment.endsWith("\u0000")) {
             out.append(newSegment.substring(0, newSegment.length() - 1));
             if (verbose) System.out.println(String.format("Null char reached"));
@@ -122,10 +159,13 @@ public class PPMCodec {
           //throw new RuntimeException("Cannot decode text");
         }
         else if (toNode.getChar() == FALLBACK) {
+          decodeMetrics.recordFallback();
           contextStr = fromNode.getString().substring(1);
         }
         else if (toNode.getChar() == ESCAPE) {
-          Bits charBits = in.read(16);
+          decodeMetrics.recordEscape();
+          decodeMetrics.recordLiteral();
+          Bits charBits = in.read(literalBits);
           char exotic = (char) charBits.toLong();
           out.append(new String(new char[]{exotic}));
           if (verbose) {
@@ -139,6 +179,7 @@ public class PPMCodec {
           //throw new RuntimeException("Cannot decode text");
         }
       }
+      decodeMetrics.recordString(out.length(), 8L * data.length - in.availible());
       return out.toString();
     } catch (IOException e) {
       throw new RuntimeException(e);
@@ -191,14 +232,18 @@ public class PPMCodec {
           if (prefix.isEmpty()) {
             //throw new RuntimeException(String.format("Cannot encode %s in model", text.substring(0,1)));
             char exotic = text.charAt(0);
-            out.write(exotic);
+            if (exotic >= 1 << literalBits) throw new IllegalArgumentException("Literal wider than " + literalBits + " bits: " + (int) exotic);
+            out.write(new Bits(exotic, literalBits));
+            encodeMetrics.recordEscape();
+            encodeMetrics.recordLiteral();
             if (verbose) {
               System.out.println(String.format(
-                "Writing exotic character %s -> %s", exotic, new Bits(exotic, 16)));
+                "Writing exotic character %s -> %s", exotic, new Bits(exotic, literalBits)));
             }
             text = text.substring(1);
           }
           else if (toNode.getChar() == FALLBACK) {
+            encodeMetrics.recordFallback();
             contextStr = prefix.substring(1);
           }
           else {
@@ -206,12 +251,14 @@ public class PPMCodec {
           }
         }
         else {
+          encodeMetrics.recordForward(fromNode.getDepth());
           contextStr += text.substring(0, segmentChars);
           text = text.substring(segmentChars);
         }
       }
       out.flush();
       Bits bits = new Bits(buffer.toByteArray(), out.getTotalBitsWritten());
+      encodeMetrics.recordString(original.length(), out.getTotalBitsWritten());
       //if(verbose) System.p.println(String.format("Encoded %s to %s", original, bits));
       return bits;
     } catch (IOException e) {
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2018 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.text;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.stream.IntStream;
+
+/**
+ * Answers typeahead queries: the most frequent completions of a prefix. A completion is a string ending in an
+ * END_OF_STRING node, or at a leaf of a depth-limited trie, ranked by its count.
+ * <p>
+ * Since counts never grow with depth, completions are found best-first: a queue ordered by count pops each node
+ * before any of its descendants, so the first k completions popped are the k best. Children enter the queue lazily,
+ * one at a time in descending count order, each popped node admitting its next sibling and its own best child. The
+ * count-sorted child order of recently visited nodes and the answers for recently queried prefixes are held in
+ * bounded caches. The trie must not be modified while the completer is in use.
+ */
+public class PrefixCompleter {
+  
+  private final CharTrie trie;
+  private final int maxResults;
+  private final LoadingCache<Integer, int[]> sortedChildren;
+  private final LoadingCache<String, List<String>> completions;
+  
+  /**
+   * Instantiates a new Prefix completer.
+   *
+   * @param trie       the trie
+   * @param maxResults the number of completions to return
+   * @param cacheSize  the number of prefixes, and of nodes' sorted children, to cache
+   */
+  public PrefixCompleter(CharTrie trie, int maxResults, int cacheSize) {
+    this.trie = trie;
+    this.maxResults = maxResults;
+    this.sortedChildren = CacheBuilder.newBuilder().maximumSize(cacheSize).build(new CacheLoader<Integer, int[]>() {
+      @Override
+      public int[] load(Integer node) {
+        return sortChildren(node);
+      }
+    });
+    this.completions = CacheBuilder.newBuilder().maximumSize(cacheSize).build(new CacheLoader<String, List<String>>() {
+      @Override
+      public List<String> load(String prefix) {
+        return search(prefix);
+      }
+    });
+  }
+  
+  /**
+   * Finds the most frequent completions of a prefix.
+   *
+   * @param prefix the prefix
+   * @return the completions, most frequent first; empty if the prefix is not in the trie
+   */
+  public List<String> complete(String prefix) {
+    return completions.getUnchecked(prefix);
+  }
+  
+  private List<String> search(String prefix) {
+    List<String> results = new ArrayList<>();
+    TrieNode start = trie.traverse(prefix);
+    if (start.getDepth() < prefix.length() || maxResults <= 0) return results;
+    PriorityQueue<Candidate> queue = new PriorityQueue<>(Comparator.<Candidate>comparingLong(x -> -x.count).thenComparingInt(x -> x.node.index));
+    queue.add(new Candidate(start, null, 0));
+    while (!queue.isEmpty() && results.size() < maxResults) {
+      Candidate candidate = queue.poll();
+      if (null != candidate.siblings) {
+        offer(queue, candidate.node.getParent(), candidate.siblings, candidate.rank + 1);
+      }
+      NodeData data = candidate.node.getData();
+      if (data.token == NodewalkerCodec.END_OF_STRING && 0 < candidate.node.getDepth() || data.numberOfChildren <= 0) {
+        results.add(candidate.node.getString());
+      }
+      else {
+        offer(queue, candidate.node, sortedChildren.getUnchecked(candidate.node.index), 0);
+      }
+    }
+    return results;
+  }
+  
+  private void offer(PriorityQueue<Candidate> queue, TrieNode parent, int[] siblings, int rank) {
+    if (rank < siblings.length) queue.add(new Candidate(new TrieNode(trie, siblings[rank], parent), siblings, rank));
+  }
+  
+  /**
+   * Lists a node's children by descending count.
+   */
+  private int[] sortChildren(int node) {
+    NodeData data = trie.nodes.get(node);
+    if (data.firstChildIndex < 0) return new int[]{};
+    long[] counts = new long[Math.max(0, data.numberOfChildren)];
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = trie.nodes.get(data.firstChildIndex + i).cursorCount;
+    }
+    return IntStream.range(0, counts.length).boxed().sorted(Comparator.comparingLong(i -> -counts[i]))
+      .mapToInt(i -> data.firstChildIndex + i).toArray();
+  }
+  
+  private static final class Candidate {
+    final TrieNode node;
+    final long count;
+    /**
+     * The count-sorted children of the node's parent, or null for the prefix node.
+     */
+    final int[] siblings;
+    final int rank;
+    
+    private Candidate(TrieNode node, int[] siblings, int rank) {
+      this.node = node;
+      this.count = node.getCursorCount();
+      this.siblings = siblings;
+      this.rank = rank;
+    }
+  }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright (c) 2018 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.text;
+
+import com.simiacryptus.util.binary.BitInputStream;
+import com.simiacryptus.util.binary.BitOutputStream;
+import com.simiacryptus.util.binary.Bits;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Sums tries serialized by ConvolutionalTrieSerializer without deserializing them. The inputs are decoded and the sum
+ * encoded one level at a time: the format codes each node's children against its godparent's children, which lie on
+ * the level being decoded, so only the previous and current levels of each trie are held in memory.
+ * <p>
+ * Counts are summed node by node. The inputs must be closed under suffixes, as tries built by CharTrieIndex are; for
+ * tries indexed to the same depth the output is byte-for-byte the serialization of CharTrie.add over the inputs.
+ */
+public class SerializedTrieMerger {
+  
+  /**
+   * Merges serialized tries.
+   *
+   * @param tries the serialized tries
+   * @return the serialized sum
+   */
+  public static byte[] merge(byte[]... tries) {
+    List<InputStream> inputs = new ArrayList<>();
+    for (byte[] trie : tries) inputs.add(new ByteArrayInputStream(trie));
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    try {
+      merge(inputs, buffer);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    return buffer.toByteArray();
+  }
+  
+  /**
+   * Merges serialized tries, streaming from the inputs to the output.
+   *
+   * @param inputs the serialized tries
+   * @param output the output
+   * @throws IOException the io exception
+   */
+  public static void merge(List<? extends InputStream> inputs, OutputStream output) throws IOException {
+    int n = inputs.size();
+    BitInputStream[] in = new BitInputStream[n];
+    Level[] inputPrevious = new Level[n];
+    Level[] inputCurrent = new Level[n];
+    int[][] mapping = new int[n][];
+    for (int i = 0; i < n; i++) {
+      in[i] = new BitInputStream(inputs.get(i));
+      inputPrevious[i] = Level.root();
+      inputCurrent[i] = readRootChildren(in[i]);
+      inputPrevious[i].linkChildren(inputCurrent[i]);
+    }
+    BitOutputStream out = new BitOutputStream(output);
+    Level previous = Level.root();
+    Level current = union(previous, null, inputCurrent, new int[][]{new int[]{0}}, mapping, true);
+    previous.linkChildren(current);
+    writeRootChildren(out, current);
+    while (current.size > 0) {
+      Level[] inputNext = new Level[n];
+      for (int i = 0; i < n; i++) {
+        inputNext[i] = readChildren(in[i], inputPrevious[i], inputCurrent[i]);
+        inputCurrent[i].linkChildren(inputNext[i]);
+      }
+      int[][] nextMapping = new int[n][];
+      Level next = union(current, previous, inputNext, mapping, nextMapping, false);
+      writeChildren(out, previous, current, next);
+      previous = current;
+      current = next;
+      mapping = nextMapping;
+      System.arraycopy(inputCurrent, 0, inputPrevious, 0, n);
+      System.arraycopy(inputNext, 0, inputCurrent, 0, n);
+    }
+    out.close();
+  }
+  
+  private static Level readRootChildren(BitInputStream in) throws IOException {
+    Level level = new Level();
+    long numberOfChildren = in.readVarLong();
+    for (int i = 0; i < numberOfChildren; i++) {
+      char token = in.readChar();
+      level.add(token, in.readVarLong(), 0, 0);
+    }
+    return level;
+  }
+  
+  private static void writeRootChildren(BitOutputStream out, Level level) throws IOException {
+    out.writeVarLong(level.size);
+    for (int i = 0; i < level.size; i++) {
+      out.write(level.tokens[i]);
+      out.writeVarLong(level.counts[i]);
+    }
+  }
+  
+  /**
+   * Decodes the children of one level, mirroring ConvolutionalTrieSerializer.deserialize.
+   */
+  private static Level readChildren(BitInputStream in, Level previous, Level current) throws IOException {
+    Level next = new Level();
+    long[] godchildAdj = new long[current.size];
+    for (int node = 0; node < current.size; node++) {
+      int godparent = current.godparents[node];
+      int firstGodchild = previous.firstChild[godparent];
+      int godchildCount = previous.childCount[godparent];
+      in.readBoundedLong(godchildCount);
+      long written = 0;
+      for (int godchild = firstGodchild; godchild < firstGodchild + godchildCount; godchild++) {
+        long upperBound = Math.min(current.counts[node] - written, current.counts[godchild] - godchildAdj[godchild]);
+        if (upperBound > 0 && in.readBool()) {
+          long childCount = in.readBoundedLong(upperBound);
+          next.add(current.tokens[godchild], childCount, node, godchild);
+          written += childCount;
+          godchildAdj[godchild] += childCount;
+        }
+      }
+    }
+    return next;
+  }
+  
+  /**
+   * Encodes the children of one level, mirroring ConvolutionalTrieSerializer.serialize.
+   */
+  private static void writeChildren(BitOutputStream out, Level previous, Level current, Level next) throws IOException {
+    long[] godchildAdj = new long[current.size];
+    for (int node = 0; node < current.size; node++) {
+      int godparent = current.godparents[node];
+      int firstGodchild = previous.firstChild[godparent];
+      int godchildCount = previous.childCount[godparent];
+      out.writeBoundedLong(current.childCount[node], godchildCount);
+      int child = current.firstChild[node];
+      int lastChild = child + current.childCount[node];
+      long written = 0;
+      for (int godchild = firstGodchild; godchild < firstGodchild + godchildCount; godchild++) {
+        long upperBound = Math.min(current.counts[node] - written, current.counts[godchild] - godchildAdj[godchild]);
+        if (upperBound <= 0) continue;
+        if (child < lastChild && next.tokens[child] == current.tokens[godchild]) {
+          long childCount = next.counts[child++];
+          out.write(Bits.ONE);
+          out.writeBoundedLong(childCount, upperBound);
+          written += childCount;
+          godchildAdj[godchild] += childCount;
+        }
+        else {
+          out.write(Bits.ZERO);
+        }
+      }
+      if (child != lastChild) throw new IllegalStateException("Merged trie is not closed under suffixes");
+    }
+  }
+  
+  /**
+   * Sums the next level of each input. Nodes are keyed by their merged parent and token, which preserves the
+   * serialization order since the parent mappings are monotonic.
+   *
+   * @param current        the merged level holding the parents
+   * @param previous       the merged level holding the parents' godparents; null when current is the root
+   * @param inputs         the inputs' next levels
+   * @param parentMappings the mapping of each input's parent indices to merged parent indices
+   * @param mappings       receives the mapping of each input's node indices to merged node indices
+   * @param rootChildren   whether the level holds the children of the root
+   */
+  private static Level union(Level current, Level previous, Level[] inputs, int[][] parentMappings, int[][] mappings, boolean rootChildren) {
+    int total = Arrays.stream(inputs).mapToInt(x -> x.size).sum();
+    long[] keys = new long[total];
+    int k = 0;
+    for (int i = 0; i < inputs.length; i++) {
+      int[] parentMapping = parentMappings[rootChildren ? 0 : i];
+      for (int node = 0; node < inputs[i].size; node++) {
+        keys[k++] = key(parentMapping[inputs[i].parents[node]], inputs[i].tokens[node]);
+      }
+    }
+    Arrays.sort(keys);
+    int unique = 0;
+    for (int i = 0; i < total; i++) {
+      if (0 == unique || keys[unique - 1] != keys[i]) keys[unique++] = keys[i];
+    }
+    long[] counts = new long[unique];
+    for (int i = 0; i < inputs.length; i++) {
+      int[] parentMapping = parentMappings[rootChildren ? 0 : i];
+      mappings[i] = new int[inputs[i].size];
+      for (int node = 0; node < inputs[i].size; node++) {
+        int index = Arrays.binarySearch(keys, 0, unique, key(parentMapping[inputs[i].parents[node]], inputs[i].tokens[node]));
+        counts[index] += inputs[i].counts[node];
+        mappings[i][node] = index;
+      }
+    }
+    Level level = new Level();
+    for (int i = 0; i < unique; i++) {
+      int parent = (int) (keys[i] >>> 16);
+      char token = (char) keys[i];
+      level.add(token, counts[i], parent, rootChildren ? 0 : -1);
+    }
+    if (!rootChildren) {
+      current.linkChildren(level);
+      for (int i = 0; i < unique; i++) {
+        // The godparent of a child is the like-tokened child of its parent's godparent
+        int godparentOfParent = current.godparents[level.parents[i]];
+        level.godparents[i] = current.findChild(previous.firstChild[godparentOfParent], previous.childCount[godparentOfParent], level.tokens[i]);
+        if (level.godparents[i] < 0) throw new IllegalStateException("Merged trie is not closed under suffixes");
+      }
+    }
+    return level;
+  }
+  
+  private static long key(int parent, char token) {
+    return ((long) parent << 16) | token;
+  }
+  
+  /**
+   * The nodes at one depth of a trie, in serialization order.
+   */
+  private static class Level {
+    int size = 0;
+    char[] tokens = new char[16];
+    long[] counts = new long[16];
+    int[] parents = new int[16];
+    int[] godparents = new int[16];
+    int[] firstChild;
+    int[] childCount;
+    
+    static Level root() {
+      Level root = new Level();
+      root.add(NodewalkerCodec.END_OF_STRING, 0, -1, -1);
+      return root;
+    }
+    
+    void add(char token, long count, int parent, int godparent) {
+      if (size == tokens.length) {
+        tokens = Arrays.copyOf(tokens, 2 * size);
+        counts = Arrays.copyOf(counts, 2 * size);
+        parents = Arrays.copyOf(parents, 2 * size);
+        godparents = Arrays.copyOf(godparents, 2 * size);
+      }
+      tokens[size] = token;
+      counts[size] = count;
+      parents[size] = parent;
+      godparents[size] = godparent;
+      size++;
+    }
+    
+    /**
+     * Records the contiguous range of children of each node, given the next level.
+     */
+    void linkChildren(Level next) {
+      firstChild = new int[size];
+      childCount = new int[size];
+      for (int i = next.size - 1; i >= 0; i--) {
+        firstChild[next.parents[i]] = i;
+        childCount[next.parents[i]]++;
+      }
+    }
+    
+    /**
+     * Finds the node with a token among a contiguous, token-ordered range.
+     */
+    int findChild(int from, int count, char token) {
+      int low = from;
+      int high = from + count - 1;
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        if (tokens[mid] < token) low = mid + 1;
+        else if (tokens[mid] > token) high = mid - 1;
+        else return mid;
+      }
+      return -1;
+    }
+  }
+}
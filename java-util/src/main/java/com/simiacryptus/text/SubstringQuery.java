@@ -0,0 +1,438 @@
+/*
+ * Copyright (c) 2018 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.text;
+
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * A boolean query over the substrings of documents held in a CharTrieIndex. Terms are resolved against the per-node
+ * document posting lists; conjunctions are evaluated cheapest term first, narrowing the candidate set with galloping
+ * intersection, and negations are subtracted from the candidates last.
+ */
+public abstract class SubstringQuery {
+  
+  /**
+   * Matches documents containing the substring.
+   *
+   * @param substring the substring
+   * @return the substring query
+   */
+  public static SubstringQuery term(String substring) {
+    return new Term(substring);
+  }
+  
+  /**
+   * Matches documents matching all of the queries.
+   *
+   * @param queries the queries
+   * @return the substring query
+   */
+  public static SubstringQuery and(SubstringQuery... queries) {
+    return new And(Arrays.asList(queries));
+  }
+  
+  /**
+   * Matches documents matching any of the queries.
+   *
+   * @param queries the queries
+   * @return the substring query
+   */
+  public static SubstringQuery or(SubstringQuery... queries) {
+    return new Or(Arrays.asList(queries));
+  }
+  
+  /**
+   * Matches documents not matching the query.
+   *
+   * @param query the query
+   * @return the substring query
+   */
+  public static SubstringQuery not(SubstringQuery query) {
+    return new Not(query);
+  }
+  
+  /**
+   * Finds the matching documents.
+   *
+   * @param index the index
+   * @return the ids of the matching documents, in ascending order
+   */
+  public int[] documents(CharTrieIndex index) {
+    checkForward(index);
+    return evaluate(index);
+  }
+  
+  /**
+   * Finds the matching documents with the most occurrences of the query's positive terms.
+   *
+   * @param index the index
+   * @param limit the maximum number of matches to return
+   * @return the matches, most occurrences first
+   */
+  public List<Match> top(CharTrieIndex index, int limit) {
+    checkForward(index);
+    int[] documents = evaluate(index);
+    List<Term> terms = new ArrayList<>();
+    collectTerms(terms);
+    long[] occurrences = new long[documents.length];
+    for (Term term : terms) {
+      term.countOccurrences(index, documents, occurrences);
+    }
+    PriorityQueue<Integer> queue = new PriorityQueue<>(Comparator.<Integer>comparingLong(i -> occurrences[i]).thenComparing(i -> -i));
+    for (int i = 0; i < documents.length; i++) {
+      queue.add(i);
+      if (queue.size() > limit) queue.poll();
+    }
+    List<Match> matches = new ArrayList<>(queue.size());
+    while (!queue.isEmpty()) {
+      int i = queue.poll();
+      matches.add(new Match(index, documents[i], occurrences[i]));
+    }
+    Collections.reverse(matches);
+    int[] matchedIds = matches.stream().mapToInt(m -> m.documentId).sorted().toArray();
+    for (Term term : terms) {
+      Map<Integer, int[]> positions = term.findPositions(index, matchedIds);
+      for (Match match : matches) {
+        match.positions.put(term.substring, positions.getOrDefault(match.documentId, new int[]{}));
+      }
+    }
+    return matches;
+  }
+  
+  private static void checkForward(CharTrieIndex index) {
+    if (index.isReversed()) throw new IllegalArgumentException("Substring queries require a forward index");
+  }
+  
+  /**
+   * Evaluates the query.
+   *
+   * @param index the index
+   * @return the ids of the matching documents, in ascending order
+   */
+  abstract int[] evaluate(CharTrieIndex index);
+  
+  /**
+   * Estimates the number of occurrences the query has to examine, used to order the operands of a conjunction.
+   *
+   * @param index the index
+   * @return the cost
+   */
+  abstract long cost(CharTrieIndex index);
+  
+  /**
+   * Collects the terms which contribute to a match, excluding negated terms.
+   *
+   * @param terms the terms
+   */
+  abstract void collectTerms(List<Term> terms);
+  
+  private static int[] intersect(int[] small, int[] large) {
+    int[] result = new int[small.length];
+    int count = 0;
+    int position = 0;
+    for (int id : small) {
+      position = gallop(large, position, id);
+      if (position >= large.length) break;
+      if (large[position] == id) result[count++] = id;
+    }
+    return Arrays.copyOf(result, count);
+  }
+  
+  private static int[] subtract(int[] left, int[] right) {
+    int[] result = new int[left.length];
+    int count = 0;
+    int position = 0;
+    for (int id : left) {
+      position = gallop(right, position, id);
+      if (position >= right.length || right[position] != id) result[count++] = id;
+    }
+    return Arrays.copyOf(result, count);
+  }
+  
+  private static int[] union(int[] left, int[] right) {
+    int[] result = new int[left.length + right.length];
+    int count = 0;
+    int l = 0;
+    int r = 0;
+    while (l < left.length || r < right.length) {
+      if (r >= right.length || (l < left.length && left[l] < right[r])) {
+        result[count++] = left[l++];
+      }
+      else if (l >= left.length || right[r] < left[l]) {
+        result[count++] = right[r++];
+      }
+      else {
+        result[count++] = left[l++];
+        r++;
+      }
+    }
+    return Arrays.copyOf(result, count);
+  }
+  
+  /**
+   * Finds the first position at or after from holding a value no less than the key, probing exponentially further
+   * ahead before a binary search, so that intersecting a short list with a long one costs O(short * log(long)).
+   */
+  private static int gallop(int[] values, int from, int key) {
+    int low = from;
+    int high = from;
+    int step = 1;
+    while (high < values.length && values[high] < key) {
+      low = high + 1;
+      high = low + step;
+      step <<= 1;
+    }
+    int i = Arrays.binarySearch(values, low, Math.min(high, values.length), key);
+    return i >= 0 ? i : -(i + 1);
+  }
+  
+  /**
+   * A document matched by a query.
+   */
+  public static class Match {
+    /**
+     * The Document id.
+     */
+    public final int documentId;
+    /**
+     * The Document.
+     */
+    public final String document;
+    /**
+     * The total number of occurrences of the query's positive terms.
+     */
+    public final long occurrences;
+    /**
+     * The start positions of each positive term within the document.
+     */
+    public final Map<String, int[]> positions = new LinkedHashMap<>();
+    
+    private Match(CharTrieIndex index, int documentId, long occurrences) {
+      this.documentId = documentId;
+      this.document = index.documents.get(documentId);
+      this.occurrences = occurrences;
+    }
+    
+    @Override
+    public String toString() {
+      return String.format("%s (%s): %s", documentId, occurrences, positions.entrySet().stream()
+        .map(e -> e.getKey() + "=" + Arrays.toString(e.getValue())).collect(Collectors.joining(", ")));
+    }
+  }
+  
+  private static class Term extends SubstringQuery {
+    private final String substring;
+    
+    private Term(String substring) {
+      this.substring = substring;
+    }
+    
+    /**
+     * The deepest indexed node along the substring; null if the substring cannot occur in any document.
+     */
+    private IndexNode node(CharTrieIndex index) {
+      IndexNode node = index.traverse(substring);
+      if (node.getDepth() < substring.length() && node.hasChildren()) return null;
+      return node;
+    }
+    
+    /**
+     * Whether the substring is longer than the indexed path, so that candidate documents must be checked.
+     */
+    private boolean isVerified(IndexNode node) {
+      return node.getDepth() < substring.length();
+    }
+    
+    @Override
+    int[] evaluate(CharTrieIndex index) {
+      IndexNode node = node(index);
+      if (null == node) return new int[]{};
+      IntStream documents = node.getDocumentIds();
+      if (isVerified(node)) documents = documents.filter(id -> index.documents.get(id).contains(substring));
+      return documents.toArray();
+    }
+    
+    @Override
+    long cost(CharTrieIndex index) {
+      IndexNode node = node(index);
+      return null == node ? 0 : node.getCursorCount();
+    }
+    
+    @Override
+    void collectTerms(List<Term> terms) {
+      terms.add(this);
+    }
+    
+    private void countOccurrences(CharTrieIndex index, int[] documents, long[] occurrences) {
+      IndexNode node = node(index);
+      if (null == node) return;
+      if (isVerified(node)) {
+        for (int i = 0; i < documents.length; i++) {
+          String document = index.documents.get(documents[i]);
+          for (int p = document.indexOf(substring); p >= 0; p = document.indexOf(substring, p + 1)) {
+            occurrences[i]++;
+          }
+        }
+      }
+      else {
+        NodeData data = node.getData();
+        int end = index.cursorSlot(data.firstCursorIndex + data.cursorCount);
+        for (int cursor = index.cursorSlot(data.firstCursorIndex); cursor < end; cursor++) {
+          int i = Arrays.binarySearch(documents, index.documents.documentAt(index.cursors.get(cursor).position));
+          if (i >= 0) occurrences[i]++;
+        }
+      }
+    }
+    
+    private Map<Integer, int[]> findPositions(CharTrieIndex index, int[] documents) {
+      Map<Integer, List<Integer>> positions = new HashMap<>();
+      IndexNode node = node(index);
+      if (null == node) return new HashMap<>();
+      if (isVerified(node)) {
+        for (int id : documents) {
+          String document = index.documents.get(id);
+          for (int p = document.indexOf(substring); p >= 0; p = document.indexOf(substring, p + 1)) {
+            positions.computeIfAbsent(id, x -> new ArrayList<>()).add(p);
+          }
+        }
+      }
+      else {
+        NodeData data = node.getData();
+        int end = index.cursorSlot(data.firstCursorIndex + data.cursorCount);
+        for (int cursor = index.cursorSlot(data.firstCursorIndex); cursor < end; cursor++) {
+          int position = index.cursors.get(cursor).position;
+          int documentId = index.documents.documentAt(position);
+          if (Arrays.binarySearch(documents, documentId) >= 0) {
+            positions.computeIfAbsent(documentId, x -> new ArrayList<>()).add(position - index.documents.offset(documentId));
+          }
+        }
+      }
+      return positions.entrySet().stream().collect(Collectors.toMap(e -> e.getKey(),
+        e -> e.getValue().stream().mapToInt(x -> x).sorted().toArray()));
+    }
+    
+    @Override
+    public String toString() {
+      return '"' + substring + '"';
+    }
+  }
+  
+  private static class And extends SubstringQuery {
+    private final List<SubstringQuery> queries;
+    
+    private And(List<SubstringQuery> queries) {
+      this.queries = queries;
+    }
+    
+    @Override
+    int[] evaluate(CharTrieIndex index) {
+      List<SubstringQuery> positive = queries.stream().filter(q -> !(q instanceof Not))
+        .sorted(Comparator.comparingLong(q -> q.cost(index))).collect(Collectors.toList());
+      List<SubstringQuery> negative = queries.stream().filter(q -> q instanceof Not)
+        .map(q -> ((Not) q).query).collect(Collectors.toList());
+      int[] result = positive.isEmpty() ? IntStream.range(0, index.documents.size()).toArray() : positive.get(0).evaluate(index);
+      for (SubstringQuery query : positive.subList(Math.min(1, positive.size()), positive.size())) {
+        if (0 == result.length) return result;
+        result = intersect(result, query.evaluate(index));
+      }
+      for (SubstringQuery query : negative) {
+        if (0 == result.length) return result;
+        result = subtract(result, query.evaluate(index));
+      }
+      return result;
+    }
+    
+    @Override
+    long cost(CharTrieIndex index) {
+      return queries.stream().filter(q -> !(q instanceof Not)).mapToLong(q -> q.cost(index)).min().orElse(index.documents.size());
+    }
+    
+    @Override
+    void collectTerms(List<Term> terms) {
+      queries.forEach(q -> q.collectTerms(terms));
+    }
+    
+    @Override
+    public String toString() {
+      return queries.stream().map(Object::toString).collect(Collectors.joining(" AND ", "(", ")"));
+    }
+  }
+  
+  private static class Or extends SubstringQuery {
+    private final List<SubstringQuery> queries;
+    
+    private Or(List<SubstringQuery> queries) {
+      this.queries = queries;
+    }
+    
+    @Override
+    int[] evaluate(CharTrieIndex index) {
+      int[] result = new int[]{};
+      for (SubstringQuery query : queries) {
+        result = union(result, query.evaluate(index));
+      }
+      return result;
+    }
+    
+    @Override
+    long cost(CharTrieIndex index) {
+      return queries.stream().mapToLong(q -> q.cost(index)).sum();
+    }
+    
+    @Override
+    void collectTerms(List<Term> terms) {
+      queries.forEach(q -> q.collectTerms(terms));
+    }
+    
+    @Override
+    public String toString() {
+      return queries.stream().map(Object::toString).collect(Collectors.joining(" OR ", "(", ")"));
+    }
+  }
+  
+  private static class Not extends SubstringQuery {
+    private final SubstringQuery query;
+    
+    private Not(SubstringQuery query) {
+      this.query = query;
+    }
+    
+    @Override
+    int[] evaluate(CharTrieIndex index) {
+      return subtract(IntStream.range(0, index.documents.size()).toArray(), query.evaluate(index));
+    }
+    
+    @Override
+    long cost(CharTrieIndex index) {
+      return index.documents.size();
+    }
+    
+    @Override
+    void collectTerms(List<Term> terms) {
+    }
+    
+    @Override
+    public String toString() {
+      return "NOT " + query;
+    }
+  }
+}
@@ -109,29 +109,20 @@ public class TextAnalysis {
       }).collect(Collectors.toList());
   }
   
+  /**
+   * Keywords list, extracting the keywords of many sources in parallel.
+   *
+   * @param sources the sources
+   * @return the keywords of each source, in order
+   */
+  public List<List<String>> keywords(final Collection<String> sources) {
+    return sources.parallelStream().map(this::keywords).collect(Collectors.toList());
+  }
+  
   private Map<String, Long> aggregateKeywords(Map<String, Long> wordCounts) {
-    Map<String, Long> accumulator = new HashMap<>();
-    wordCounts.forEach((key, count) -> {
-      boolean added = false;
-      for (Map.Entry<String, Long> e : accumulator.entrySet()) {
-        String combine = combine(key, e.getKey(), 4);
-        if (null != combine) {
-          accumulator.put(combine, e.getValue() + count);
-          accumulator.remove(e.getKey());
-          added = true;
-          break;
-        }
-      }
-      if (!added) {
-        accumulator.put(key, count);
-      }
-    });
-    if (wordCounts.size() > accumulator.size()) {
-      return aggregateKeywords(accumulator);
-    }
-    else {
-      return accumulator;
-    }
+    KeywordAggregator aggregator = new KeywordAggregator(4);
+    wordCounts.forEach(aggregator::add);
+    return aggregator.getCounts();
   }
   
   /**
@@ -148,6 +139,29 @@ public class TextAnalysis {
     return corrected.sum;
   }
   
+  /**
+   * Corrects the spelling of a word against a dictionary trie: the most probable word at the least edit distance, up to
+   * the given number of edits. The dictionary is walked once, at the full edit budget.
+   *
+   * @param word     the word
+   * @param maxEdits the max edits
+   * @return the correction, or the word itself if no dictionary word is close enough
+   */
+  public String correct(final String word, int maxEdits) {
+    TrieNode nearest = new FuzzySearch(inner, word, maxEdits).nearest();
+    return null == nearest ? word : nearest.getString();
+  }
+  
+  /**
+   * Corrects the spelling of many words in parallel, allowing up to two edits per word.
+   *
+   * @param words the words
+   * @return the corrections, in order
+   */
+  public List<String> correctAll(final List<String> words) {
+    return words.parallelStream().map(word -> correct(word, 2)).collect(Collectors.toList());
+  }
+  
   private WordSpelling buildCorrection(WordSpelling wordSpelling) {
     int timesWithoutImprovement = 0;
     int maxCorrections = 10;
@@ -232,13 +246,13 @@ public class TextAnalysis {
     double aposterioriNatsPrev = 0;
     boolean isIncreasing = false;
     double prevLink = 0;
+    LinkScanner scanner = new LinkScanner(inner, source);
     for (int i = 1; i < source.length(); i++) {
-      String priorText = source.substring(0, i);
-      TrieNode priorNode = getMaxentPrior(priorText);
+      scanner.advance();
+      TrieNode priorNode = scanner.getPriorNode();
       double aprioriNats = entropy(priorNode, priorNode.getParent());
       
-      String followingText = source.substring(i - 1, source.length());
-      TrieNode followingNode = getMaxentPost(followingText);
+      TrieNode followingNode = scanner.getFollowingNode();
       TrieNode godparent = followingNode.godparent();
       double aposterioriNats = entropy(followingNode, godparent);
       
@@ -269,44 +283,15 @@ public class TextAnalysis {
     return output;
   }
   
-  private TrieNode getMaxentPost(String followingText) {
-    TrieNode followingNode = this.inner.traverse(followingText);
-    TrieNode godparent1 = followingNode.godparent();
-    double aposterioriNats1 = entropy(followingNode, godparent1);
-    while (followingText.length() > 1) {
-      String followingText2 = followingText.substring(0, followingText.length() - 1);
-      TrieNode followingNode2 = this.inner.traverse(followingText2);
-      TrieNode godparent2 = followingNode2.godparent();
-      double aposterioriNats2 = entropy(followingNode2, godparent2);
-      if (aposterioriNats2 < aposterioriNats1) {
-        aposterioriNats1 = aposterioriNats2;
-        followingNode = followingNode2;
-        followingText = followingText2;
-      }
-      else {
-        break;
-      }
-    }
-    return followingNode;
-  }
-  
-  private TrieNode getMaxentPrior(String priorText) {
-    TrieNode priorNode = this.inner.matchEnd(priorText);
-    double aprioriNats1 = entropy(priorNode, priorNode.getParent());
-    while (priorText.length() > 1) {
-      String priorText2 = priorText.substring(1);
-      TrieNode priorNode2 = this.inner.matchEnd(priorText2);
-      double aprioriNats2 = entropy(priorNode2, priorNode2.getParent());
-      if (aprioriNats2 < aprioriNats1) {
-        aprioriNats1 = aprioriNats2;
-        priorText = priorText2;
-        priorNode = priorNode2;
-      }
-      else {
-        break;
-      }
-    }
-    return priorNode;
+  /**
+   * Split chars list, tokenizing many sources in parallel.
+   *
+   * @param sources   the sources
+   * @param threshold the threshold
+   * @return the tokens of each source, in order
+   */
+  public List<List<String>> splitChars(final Collection<String> sources, double threshold) {
+    return sources.parallelStream().map(source -> splitChars(source, threshold)).collect(Collectors.toList());
   }
   
   private double getJointNats(TrieNode priorNode, TrieNode followingNode) {
@@ -533,4 +518,148 @@ public class TextAnalysis {
     
     
   }
+  
+  /**
+   * Finds the contexts on either side of each position of a text in a single pass, rather than by matching ever-shorter
+   * substrings against the trie at every position.
+   * <p>
+   * The prior context of position i is chosen among the suffixes of the text before it: the longest suffix present in
+   * the trie is maintained as characters are consumed, backing off along suffix links. The following context is chosen
+   * among the prefixes of the text from position i - 1: the longest prefix present in the trie is maintained by
+   * dropping its first character along a suffix link and extending it greedily, so its end only moves forward. Both
+   * choices then reproduce the searches of matchEnd and traverse over the shortened strings from the match lengths
+   * alone.
+   */
+  private static class LinkScanner {
+    private final CharTrie trie;
+    private final String source;
+    private final List<TrieNode> suffixChain = new ArrayList<>();
+    private int position = 0;
+    private TrieNode suffix;
+    private int suffixDepth = 0;
+    private TrieNode prefix;
+    private int prefixEnd = 0;
+    
+    private LinkScanner(CharTrie trie, String source) {
+      this.trie = trie;
+      this.source = source;
+      this.suffix = trie.root();
+      this.prefix = trie.root();
+    }
+    
+    /**
+     * The length of the suffix CharTrie.matchEnd settles on, given the length of its search string and of the longest
+     * suffix of it present in the trie. Its probes narrow a range of candidate lengths and may stop short of the
+     * longest.
+     */
+    private static int matchEndLength(int length, int longest) {
+      int min = 0;
+      int max = length;
+      int i = Math.min(max, 12);
+      int winner = -1;
+      while (max > min) {
+        if (i <= longest) {
+          min = Math.max(min, i + 1);
+          winner = Math.max(winner, i);
+        }
+        else {
+          max = Math.min(max, i - 1);
+        }
+        i = (3 * max + min) / 4;
+      }
+      return Math.max(winner, 0);
+    }
+    
+    /**
+     * Consumes the next character of the source.
+     */
+    void advance() {
+      char token = source.charAt(position++);
+      Optional<? extends TrieNode> child = suffix.getChild(token);
+      while (!child.isPresent() && suffixDepth > 0) {
+        suffix = suffix.godparent();
+        suffixDepth--;
+        child = suffix.getChild(token);
+      }
+      if (child.isPresent()) {
+        suffix = child.get();
+        suffixDepth++;
+      }
+      suffixChain.clear();
+      
+      int start = position - 1;
+      if (start > 0) {
+        if (prefixEnd > start - 1) {
+          prefix = prefix.godparent();
+        }
+        else {
+          prefix = trie.root();
+          prefixEnd = start;
+        }
+      }
+      while (prefixEnd < source.length()) {
+        child = prefix.getChild(source.charAt(prefixEnd));
+        if (!child.isPresent()) break;
+        prefix = child.get();
+        prefixEnd++;
+      }
+    }
+    
+    /**
+     * The context of the text before the current position: the suffix matchEnd finds, shortened from the start while
+     * that lowers its entropy given its parent.
+     */
+    TrieNode getPriorNode() {
+      int length = position;
+      TrieNode node = getSuffix(matchEndLength(length, Math.min(suffixDepth, length)));
+      double nats = entropy(node, node.getParent());
+      while (length > 1) {
+        length--;
+        TrieNode shorter = getSuffix(matchEndLength(length, Math.min(suffixDepth, length)));
+        double shorterNats = entropy(shorter, shorter.getParent());
+        if (shorterNats < nats) {
+          nats = shorterNats;
+          node = shorter;
+        }
+        else {
+          break;
+        }
+      }
+      return node;
+    }
+    
+    /**
+     * The context of the text from the position before the current one: the prefix traverse finds, shortened from the
+     * end while that lowers its entropy given its godparent. Only a prefix running to the end of the source can be
+     * shortened; any other keeps its node when its string is cut.
+     */
+    TrieNode getFollowingNode() {
+      TrieNode node = prefix;
+      if (prefixEnd < source.length()) return node;
+      double nats = entropy(node, node.godparent());
+      for (int length = source.length() - (position - 1); length > 1; length--) {
+        TrieNode shorter = node.getParent();
+        double shorterNats = entropy(shorter, shorter.godparent());
+        if (shorterNats < nats) {
+          nats = shorterNats;
+          node = shorter;
+        }
+        else {
+          break;
+        }
+      }
+      return node;
+    }
+    
+    /**
+     * The node for the suffix of the given length of the consumed text, found along the suffix links of the longest.
+     */
+    private TrieNode getSuffix(int length) {
+      if (suffixChain.isEmpty()) suffixChain.add(suffix);
+      while (suffixChain.size() <= suffixDepth - length) {
+        suffixChain.add(suffixChain.get(suffixChain.size() - 1).godparent());
+      }
+      return suffixChain.get(suffixDepth - length);
+    }
+  }
 }
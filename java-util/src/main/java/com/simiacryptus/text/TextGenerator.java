@@ -23,6 +23,7 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -157,21 +158,44 @@ public class TextGenerator {
   }
   
   private TrieNode maxNextNode(TrieNode node, int lookahead) {
-    Stream<TrieNode> childStream = node.getChildren().map(x -> x);
-    for (int level = 0; level < lookahead; level++) {
-      childStream = childStream.flatMap(child -> child.hasChildren() ? child.getChildren() : Stream.of(child));
+    TrieNode result = bestFirstNode(node, lookahead);
+    while (null == result && null != node) {
+      // Nothing below this context at any lookahead; retry from the godparent without lookahead
+      node = node.godparent();
+      if (null != node) result = bestFirstNode(node, 0);
     }
-    TrieNode result = childStream.max(Comparator.comparingLong(x -> x.getCursorCount())).orElse(null);
-    if (null == result) {
-      if (lookahead > 0) {
-        return maxNextNode(node, lookahead - 1);
+    return result;
+  }
+  
+  /**
+   * Finds the highest-count node reachable within the given lookahead, where leaves above the lookahead depth also
+   * qualify. Cursor counts never increase with depth, so once a qualifying node is found every queued subtree with a
+   * lower count is pruned; ties resolve to the lexicographically first path.
+   *
+   * @param node      the node
+   * @param lookahead the lookahead
+   * @return the trie node, or null if the node has no children
+   */
+  private TrieNode bestFirstNode(TrieNode node, int lookahead) {
+    int maxDepth = node.getDepth() + 1 + lookahead;
+    PriorityQueue<TrieNode> queue = new PriorityQueue<>(Comparator.comparingLong(x -> -x.getCursorCount()));
+    node.getChildren().forEach(queue::add);
+    TrieNode best = null;
+    while (!queue.isEmpty()) {
+      TrieNode next = queue.poll();
+      if (null != best && next.getCursorCount() < best.getCursorCount()) break;
+      if (isLookaheadTerminal(next, maxDepth)) {
+        if (null == best || next.getRawString().compareTo(best.getRawString()) < 0) best = next;
       }
-      TrieNode godparent = node.godparent();
-      if (null != godparent) {
-        return maxNextNode(godparent, lookahead);
+      else {
+        next.getChildren().forEach(queue::add);
       }
     }
-    return result;
+    return best;
+  }
+  
+  private boolean isLookaheadTerminal(TrieNode node, int maxDepth) {
+    return node.getDepth() >= maxDepth || !node.hasChildren();
   }
   
 }
@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2018 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.text;
+
+import com.simiacryptus.util.binary.BitInputStream;
+import com.simiacryptus.util.binary.BitOutputStream;
+import com.simiacryptus.util.binary.Bits;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+/**
+ * A word-level trie: n-gram counts over word ids from a vocabulary. Each word is carried as one char of a char trie, so
+ * word models share its index build, suffix links, codecs and sampling, and a word n-gram costs one trie level per
+ * word rather than one per character.
+ */
+public class TokenTrie {
+  
+  private final Vocabulary vocabulary;
+  private final CharTrie trie;
+  
+  /**
+   * Instantiates a new Token trie.
+   *
+   * @param vocabulary the vocabulary
+   * @param trie       a char trie over the vocabulary's word chars
+   */
+  public TokenTrie(Vocabulary vocabulary, CharTrie trie) {
+    this.vocabulary = vocabulary;
+    this.trie = trie;
+  }
+  
+  /**
+   * Indexes documents of words, numbering the words in order of first appearance.
+   *
+   * @param documents the documents
+   * @param maxLevels the max levels, in words
+   * @param minWeight the min weight
+   * @return the token trie
+   */
+  public static TokenTrie index(Collection<? extends List<String>> documents, int maxLevels, int minWeight) {
+    Vocabulary vocabulary = new Vocabulary();
+    List<String> encoded = documents.stream().map(vocabulary::encode).collect(Collectors.toList());
+    return new TokenTrie(vocabulary, CharTrieIndex.indexFulltext(encoded, maxLevels, minWeight));
+  }
+  
+  /**
+   * Gets vocabulary.
+   *
+   * @return the vocabulary
+   */
+  public Vocabulary getVocabulary() {
+    return vocabulary;
+  }
+  
+  /**
+   * Gets trie.
+   *
+   * @return the char trie
+   */
+  public CharTrie getTrie() {
+    return trie;
+  }
+  
+  /**
+   * Counts the occurrences of a sequence of word ids.
+   *
+   * @param ids the ids
+   * @return the count, zero if the sequence is not in the trie
+   */
+  public long getCount(int... ids) {
+    TrieNode node = trie.root();
+    for (int id : ids) {
+      if (id < 0 || id >= Vocabulary.CAPACITY) return 0;
+      Optional<? extends TrieNode> child = node.getChild(Vocabulary.toChar(id));
+      if (!child.isPresent()) return 0;
+      node = child.get();
+    }
+    return node.getCursorCount();
+  }
+  
+  /**
+   * Counts the occurrences of a sequence of words.
+   *
+   * @param words the words
+   * @return the count, zero if the sequence is not in the trie
+   */
+  public long getCount(List<String> words) {
+    return getCount(words.stream().mapToInt(vocabulary::find).toArray());
+  }
+  
+  /**
+   * Encodes words with the trie's PPM codec, leaving the vocabulary unchanged. Words not in the vocabulary are coded as
+   * UNKNOWN, and spelled out in a header of length-prefixed UTF-8, padded to whole bytes, ahead of the PPM stream; any
+   * token trie over the same vocabulary and trie can decode the result.
+   *
+   * @param words   the words
+   * @param context the context
+   * @return the bits
+   */
+  public Bits encodePPM(List<String> words, int context) {
+    List<String> unknown = words.stream().filter(word -> vocabulary.find(word) < 0).collect(Collectors.toList());
+    return new Bits(writeUnknown(unknown).getBytes()).concatenate(trie.getCodec().encodePPM(vocabulary.lookup(words), context));
+  }
+  
+  /**
+   * Decodes words written by encodePPM.
+   *
+   * @param data    the data
+   * @param context the context
+   * @return the words
+   */
+  public List<String> decodePPM(byte[] data, int context) {
+    List<String> unknown = readUnknown(data);
+    int headerBytes = writeUnknown(unknown).getBytes().length;
+    String text = trie.getCodec().decodePPM(Arrays.copyOfRange(data, headerBytes, data.length), context);
+    List<String> words = new ArrayList<>(text.length());
+    int next = 0;
+    for (int i = 0; i < text.length(); i++) {
+      if (text.charAt(i) == Vocabulary.UNKNOWN) {
+        if (next >= unknown.size()) throw new IllegalArgumentException("More unknown words than the header spells out");
+        words.add(unknown.get(next++));
+      }
+      else {
+        words.add(vocabulary.getWord(Vocabulary.toId(text.charAt(i))));
+      }
+    }
+    return words;
+  }
+  
+  /**
+   * Samples a word sequence from the model, as TextGenerator.generateMarkov.
+   *
+   * @param length  the number of words
+   * @param context the context, in words
+   * @param seed    the seed
+   * @return the words
+   */
+  public List<String> generateMarkov(int length, int context, List<String> seed) {
+    String text = trie.getGenerator().generateMarkov(length, context, vocabulary.lookup(seed));
+    List<String> words = new ArrayList<>(seed);
+    words.addAll(vocabulary.decode(text.substring(seed.size())));
+    return words;
+  }
+  
+  private static Bits writeUnknown(List<String> unknown) {
+    return BitOutputStream.toBits(out -> {
+      try {
+        out.writeVarLong(unknown.size());
+        for (String word : unknown) {
+          byte[] bytes = word.getBytes(StandardCharsets.UTF_8);
+          out.writeVarLong(bytes.length);
+          for (byte b : bytes) out.write(new Bits(b & 0xFF, 8));
+        }
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    });
+  }
+  
+  private static List<String> readUnknown(byte[] data) {
+    try {
+      BitInputStream in = BitInputStream.toBitStream(data);
+      int count = (int) in.readVarLong();
+      List<String> unknown = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        byte[] bytes = new byte[(int) in.readVarLong()];
+        for (int j = 0; j < bytes.length; j++) bytes[j] = (byte) in.read(8).toLong();
+        unknown.add(new String(bytes, StandardCharsets.UTF_8));
+      }
+      return unknown;
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
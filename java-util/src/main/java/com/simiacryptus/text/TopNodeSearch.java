@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2018 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.text;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Finds the nodes of a trie with the greatest values of a function, as CharTrie.max. Each subtree under the root is
+ * walked depth-first in parallel into its own priority queue holding at most maxResults nodes, and the queues are
+ * merged at the end. When an upper bound function is given, a subtree whose bound falls below the least value already
+ * held by any full queue is skipped. A subtree bounded by exactly that value is still walked, since a tying node with a
+ * lower index outranks the held one; so the results do not depend on the order the workers run in.
+ *
+ * @param <T> the value type
+ */
+final class TopNodeSearch<T extends Comparable<T>> {
+  
+  private final Function<TrieNode, T> fn;
+  private final Function<TrieNode, T> bound;
+  private final int maxResults;
+  /**
+   * The best value known to be met by at least maxResults nodes, shared by all workers.
+   */
+  private final AtomicReference<T> threshold = new AtomicReference<>();
+  /**
+   * Orders nodes from worst to best: by value, ties going to the lower node index.
+   */
+  private final Comparator<Ranked<T>> order = Comparator.<Ranked<T>, T>comparing(x -> x.value).thenComparing(x -> -x.node.index);
+  
+  /**
+   * Instantiates a new Top node search.
+   *
+   * @param fn         the fn
+   * @param bound      an upper bound on fn over a node and all its descendants; null to visit every node
+   * @param maxResults the max results
+   */
+  TopNodeSearch(Function<TrieNode, T> fn, Function<TrieNode, T> bound, int maxResults) {
+    this.fn = fn;
+    this.bound = bound;
+    this.maxResults = maxResults;
+  }
+  
+  /**
+   * Searches the trie below a node, inclusive.
+   *
+   * @param root the root
+   * @return the nodes, greatest value first
+   */
+  List<TrieNode> search(TrieNode root) {
+    List<TrieNode> results = new ArrayList<>();
+    if (maxResults <= 0) return results;
+    PriorityQueue<Ranked<T>> heap = new PriorityQueue<>(order);
+    offer(heap, root);
+    List<TrieNode> children = root.getChildren().collect(Collectors.toList());
+    children.parallelStream().map(this::searchSubtree).collect(Collectors.toList())
+      .forEach(subtree -> subtree.forEach(x -> offer(heap, x)));
+    List<Ranked<T>> ranked = new ArrayList<>(heap);
+    ranked.sort(order.reversed());
+    for (Ranked<T> x : ranked) results.add(x.node);
+    return results;
+  }
+  
+  private PriorityQueue<Ranked<T>> searchSubtree(TrieNode subtreeRoot) {
+    PriorityQueue<Ranked<T>> heap = new PriorityQueue<>(order);
+    ArrayDeque<TrieNode> stack = new ArrayDeque<>();
+    stack.push(subtreeRoot);
+    while (!stack.isEmpty()) {
+      TrieNode node = stack.pop();
+      if (null != bound) {
+        T limit = threshold.get();
+        if (null != limit && bound.apply(node).compareTo(limit) < 0) continue;
+      }
+      offer(heap, new Ranked<>(node, fn.apply(node)));
+      node.getChildren().forEach(stack::push);
+    }
+    return heap;
+  }
+  
+  private void offer(PriorityQueue<Ranked<T>> heap, TrieNode node) {
+    offer(heap, new Ranked<>(node, fn.apply(node)));
+  }
+  
+  private void offer(PriorityQueue<Ranked<T>> heap, Ranked<T> x) {
+    if (heap.size() < maxResults) {
+      heap.add(x);
+    }
+    else if (order.compare(x, heap.peek()) > 0) {
+      heap.poll();
+      heap.add(x);
+    }
+    else {
+      return;
+    }
+    if (heap.size() == maxResults) {
+      T least = heap.peek().value;
+      threshold.accumulateAndGet(least, (a, b) -> null == a || b.compareTo(a) > 0 ? b : a);
+    }
+  }
+  
+  private static final class Ranked<T> {
+    final TrieNode node;
+    final T value;
+    
+    private Ranked(TrieNode node, T value) {
+      this.node = node;
+      this.value = value;
+    }
+  }
+}
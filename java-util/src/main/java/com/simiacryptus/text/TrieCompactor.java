@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2018 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.text;
+
+import com.simiacryptus.util.data.SerialArrayList;
+
+import java.util.Arrays;
+
+/**
+ * Prunes a trie and lays out the surviving nodes in breadth-first order, as CharTrie.compact. A node survives when its
+ * count meets the threshold; since counts never grow from parent to child or from suffix to string, the survivors are
+ * closed under both. The counts of a survivor's dropped children are folded into a single FALLBACK child, so the
+ * remaining children keep their share of the parent's count; a survivor losing all its children becomes a leaf.
+ * <p>
+ * In breadth-first order the upper levels, which every walk passes through, are packed together at the front of the
+ * node array, and each level's children blocks follow in the order of their parents.
+ */
+final class TrieCompactor {
+  
+  private final char[] tokens;
+  private final long[] counts;
+  private final int[] firstChild;
+  private final short[] numberOfChildren;
+  
+  /**
+   * Instantiates a new Trie compactor.
+   *
+   * @param source the source
+   */
+  TrieCompactor(CharTrie source) {
+    int nodeCount = source.getNodeCount();
+    tokens = new char[nodeCount];
+    counts = new long[nodeCount];
+    firstChild = new int[nodeCount];
+    numberOfChildren = new short[nodeCount];
+    for (int i = 0; i < nodeCount; i++) {
+      NodeData data = source.nodes.get(i);
+      tokens[i] = data.token;
+      counts[i] = data.cursorCount;
+      firstChild[i] = data.firstChildIndex;
+      numberOfChildren[i] = data.firstChildIndex < 0 ? 0 : (short) Math.max(0, data.numberOfChildren);
+    }
+  }
+  
+  /**
+   * Finds the smallest threshold whose compacted trie fits a node budget.
+   *
+   * @param maxNodes the max nodes
+   * @return the min count
+   */
+  long thresholdFor(int maxNodes) {
+    if (maxNodes < 1) throw new IllegalArgumentException("maxNodes must be positive");
+    long[] candidates = Arrays.stream(counts).distinct().sorted().toArray();
+    int low = 0;
+    int high = candidates.length;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (layout(candidates[mid], null) <= maxNodes) high = mid;
+      else low = mid + 1;
+    }
+    return low < candidates.length ? candidates[low] : Long.MAX_VALUE;
+  }
+  
+  /**
+   * Builds the compacted trie.
+   *
+   * @param minCount the min count
+   * @return the char trie
+   */
+  CharTrie compact(long minCount) {
+    CharTrie result = new CharTrie();
+    layout(minCount, result.nodes);
+    return result.recomputeCursorDetails().recomputeGodparents();
+  }
+  
+  /**
+   * Visits the surviving nodes breadth-first, writing them to the destination if one is given.
+   *
+   * @return the number of nodes in the compacted trie
+   */
+  private int layout(long minCount, SerialArrayList<NodeData> dest) {
+    int[] queue = new int[16];
+    queue[0] = 0;
+    int size = 1;
+    for (int head = 0; head < size; head++) {
+      int node = queue[head];
+      if (node < 0) continue;
+      int kept = 0;
+      long dropped = 0;
+      for (int child = firstChild[node]; child < firstChild[node] + numberOfChildren[node]; child++) {
+        if (counts[child] >= minCount && tokens[child] != NodewalkerCodec.FALLBACK) kept++;
+        else dropped += counts[child];
+      }
+      boolean fallback = kept > 0 && dropped > 0;
+      int first = size;
+      for (int child = firstChild[node]; kept > 0 && child < firstChild[node] + numberOfChildren[node]; child++) {
+        if (counts[child] >= minCount && tokens[child] != NodewalkerCodec.FALLBACK) {
+          if (size == queue.length) queue = Arrays.copyOf(queue, 2 * size);
+          queue[size++] = child;
+        }
+      }
+      if (fallback) {
+        if (null != dest) dest.set(size, new NodeData(NodewalkerCodec.FALLBACK, (short) 0, -1, dropped, -1));
+        if (size == queue.length) queue = Arrays.copyOf(queue, 2 * size);
+        // The generated leaf has no source node
+        queue[size++] = -1;
+      }
+      if (null != dest) {
+        short children = (short) (size - first);
+        dest.set(head, new NodeData(tokens[node], children, 0 < children ? first : -1, counts[node], -1));
+      }
+    }
+    return size;
+  }
+}
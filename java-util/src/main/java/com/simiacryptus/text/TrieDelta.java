@@ -0,0 +1,306 @@
+/*
+ * Copyright (c) 2018 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.text;
+
+import com.simiacryptus.util.binary.BitInputStream;
+import com.simiacryptus.util.binary.BitOutputStream;
+import com.simiacryptus.util.binary.Bits;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Encodes the difference between two versions of a trie, so that a model update can be shipped as a patch against
+ * the model a consumer already holds. Both tries are walked together depth-first; every base node costs one bit when
+ * its subtree is unchanged, so an update costs little more than the nodes it touches. As in
+ * ConvolutionalTrieSerializer, counts are coded against a bound taken from the parent: a child's growth, or the count
+ * of an added child, rarely exceeds what remains of its parent's growth, and is written with just enough bits for that
+ * remainder.
+ * <p>
+ * The first byte of a delta records whether it changes the structure of the trie; deltas that only adjust counts can
+ * be applied in place.
+ */
+public class TrieDelta {
+  
+  private static final int COUNTS_ONLY = 0;
+  private static final int STRUCTURAL = 1;
+  
+  /**
+   * Encodes the changes that turn one trie into another.
+   *
+   * @param base   the base
+   * @param target the target
+   * @return the delta
+   */
+  public static byte[] diff(CharTrie base, CharTrie target) {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    boolean structural;
+    try (BitOutputStream out = new BitOutputStream(body)) {
+      long change = target.root().getCursorCount() - base.root().getCursorCount();
+      writeGamma(out, zigzag(change) + 1);
+      structural = writeChildren(out, base.root(), target.root(), change, new HashMap<>());
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    buffer.write(structural ? STRUCTURAL : COUNTS_ONLY);
+    byte[] bytes = body.toByteArray();
+    buffer.write(bytes, 0, bytes.length);
+    return buffer.toByteArray();
+  }
+  
+  /**
+   * Applies a delta to a base trie, returning the patched trie as a new snapshot.
+   *
+   * @param base  the base trie the delta was computed against
+   * @param delta the delta
+   * @return the char trie
+   */
+  public static CharTrie apply(CharTrie base, byte[] delta) {
+    CharTrie result = new CharTrieIndex();
+    try {
+      BitInputStream in = new BitInputStream(new ByteArrayInputStream(delta, 1, delta.length - 1));
+      long change = unzigzag(readGamma(in) - 1);
+      readChildren(in, base.root(), result.root(), change);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    return result.recomputeCursorDetails();
+  }
+  
+  /**
+   * Applies a delta that only adjusts counts by updating the base trie's nodes in place. Cursor data held by a
+   * CharTrieIndex is not patched.
+   *
+   * @param base  the base trie the delta was computed against
+   * @param delta the delta
+   * @return the base trie
+   */
+  public static CharTrie applyInPlace(CharTrie base, byte[] delta) {
+    if (!isCountsOnly(delta)) throw new IllegalArgumentException("Delta changes the trie structure and cannot be applied in place");
+    try {
+      BitInputStream in = new BitInputStream(new ByteArrayInputStream(delta, 1, delta.length - 1));
+      long change = unzigzag(readGamma(in) - 1);
+      updateChildren(in, base.root(), change);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    return base.recomputeCursorDetails();
+  }
+  
+  /**
+   * Whether a delta only adjusts counts, leaving the structure of the trie unchanged.
+   *
+   * @param delta the delta
+   * @return the boolean
+   */
+  public static boolean isCountsOnly(byte[] delta) {
+    return COUNTS_ONLY == delta[0];
+  }
+  
+  private static boolean writeChildren(BitOutputStream out, TrieNode base, TrieNode target, long change, Map<Integer, Boolean> identical) throws IOException {
+    boolean structural = false;
+    long remaining = change;
+    TreeMap<Character, ? extends TrieNode> baseChildren = null == base ? new TreeMap<>() : base.getChildrenMap();
+    TreeMap<Character, ? extends TrieNode> targetChildren = target.getChildrenMap();
+    TreeMap<Character, TrieNode[]> modified = new TreeMap<>();
+    for (Map.Entry<Character, ? extends TrieNode> e : baseChildren.entrySet()) {
+      TrieNode targetChild = targetChildren.get(e.getKey());
+      if (null != targetChild && isIdentical(e.getValue(), targetChild, identical)) {
+        out.write(Bits.ONE);
+        continue;
+      }
+      out.write(Bits.ZERO);
+      if (null == targetChild) {
+        out.write(Bits.ONE);
+        structural = true;
+      }
+      else {
+        out.write(Bits.ZERO);
+        long childChange = targetChild.getCursorCount() - e.getValue().getCursorCount();
+        writeChange(out, childChange, remaining);
+        remaining -= childChange;
+        modified.put(e.getKey(), new TrieNode[]{e.getValue(), targetChild});
+      }
+    }
+    List<TrieNode> added = new ArrayList<>();
+    targetChildren.forEach((token, child) -> {
+      if (!baseChildren.containsKey(token)) added.add(child);
+    });
+    if (added.isEmpty()) {
+      out.write(Bits.ZERO);
+    }
+    else {
+      out.write(Bits.ONE);
+      out.writeVarLong(added.size() - 1);
+      for (TrieNode child : added) {
+        out.write(child.getChar());
+        writeChange(out, child.getCursorCount(), remaining);
+        remaining -= child.getCursorCount();
+        modified.put(child.getChar(), new TrieNode[]{null, child});
+      }
+      structural = true;
+    }
+    for (TrieNode[] pair : modified.values()) {
+      long childChange = pair[1].getCursorCount() - (null == pair[0] ? 0 : pair[0].getCursorCount());
+      structural |= writeChildren(out, pair[0], pair[1], childChange, identical);
+    }
+    return structural;
+  }
+  
+  /**
+   * Whether two subtrees have the same shape and counts, memoized by target node.
+   */
+  private static boolean isIdentical(TrieNode base, TrieNode target, Map<Integer, Boolean> identical) {
+    Boolean cached = identical.get(target.index);
+    if (null != cached) return cached;
+    boolean result = base.getCursorCount() == target.getCursorCount() && base.getNumberOfChildren() == target.getNumberOfChildren();
+    if (result) {
+      TreeMap<Character, ? extends TrieNode> baseChildren = base.getChildrenMap();
+      for (TrieNode targetChild : target.getChildrenMap().values()) {
+        TrieNode baseChild = baseChildren.get(targetChild.getChar());
+        if (null == baseChild || !isIdentical(baseChild, targetChild, identical)) {
+          result = false;
+          break;
+        }
+      }
+    }
+    identical.put(target.index, result);
+    return result;
+  }
+  
+  private static void readChildren(BitInputStream in, TrieNode base, TrieNode dest, long change) throws IOException {
+    long remaining = change;
+    TreeMap<Character, ? extends TrieNode> baseChildren = null == base ? new TreeMap<>() : base.getChildrenMap();
+    TreeMap<Character, Long> counts = new TreeMap<>();
+    Map<Character, TrieNode> unchanged = new HashMap<>();
+    for (Map.Entry<Character, ? extends TrieNode> e : baseChildren.entrySet()) {
+      long count = e.getValue().getCursorCount();
+      if (in.readBool()) {
+        unchanged.put(e.getKey(), e.getValue());
+      }
+      else if (in.readBool()) {
+        continue;
+      }
+      else {
+        long childChange = readChange(in, remaining);
+        remaining -= childChange;
+        count += childChange;
+      }
+      counts.put(e.getKey(), count);
+    }
+    if (in.readBool()) {
+      long numberAdded = in.readVarLong() + 1;
+      for (long i = 0; i < numberAdded; i++) {
+        char token = in.readChar();
+        long count = readChange(in, remaining);
+        remaining -= count;
+        counts.put(token, count);
+      }
+    }
+    dest.writeChildren(counts);
+    for (Map.Entry<Character, ? extends TrieNode> e : dest.getChildrenMap().entrySet()) {
+      TrieNode destChild = e.getValue();
+      TrieNode baseChild = baseChildren.get(e.getKey());
+      if (unchanged.containsKey(e.getKey())) {
+        copyChildren(baseChild, destChild);
+      }
+      else {
+        long childChange = destChild.getCursorCount() - (null == baseChild ? 0 : baseChild.getCursorCount());
+        readChildren(in, baseChild, destChild, childChange);
+      }
+    }
+  }
+  
+  private static void copyChildren(TrieNode source, TrieNode dest) {
+    TreeMap<Character, Long> counts = new TreeMap<>();
+    TreeMap<Character, ? extends TrieNode> sourceChildren = source.getChildrenMap();
+    sourceChildren.forEach((token, child) -> counts.put(token, child.getCursorCount()));
+    dest.writeChildren(counts);
+    dest.getChildrenMap().forEach((token, child) -> copyChildren(sourceChildren.get(token), child));
+  }
+  
+  private static void updateChildren(BitInputStream in, TrieNode node, long change) throws IOException {
+    long remaining = change;
+    List<TrieNode> modified = new ArrayList<>();
+    List<Long> changes = new ArrayList<>();
+    for (TrieNode child : node.getChildrenMap().values()) {
+      if (in.readBool()) continue;
+      if (in.readBool()) throw new IllegalStateException("Delta removes a node");
+      long childChange = readChange(in, remaining);
+      remaining -= childChange;
+      child.update(d -> d.setCursorCount(d.cursorCount + childChange));
+      modified.add(child);
+      changes.add(childChange);
+    }
+    if (in.readBool()) throw new IllegalStateException("Delta adds a node");
+    for (int i = 0; i < modified.size(); i++) {
+      updateChildren(in, modified.get(i), changes.get(i));
+    }
+  }
+  
+  /**
+   * Writes a count adjustment. Growth that fits within what remains of the parent's growth is coded with as many
+   * bits as that bound needs; anything else falls back to a signed gamma code.
+   */
+  private static void writeChange(BitOutputStream out, long change, long remaining) throws IOException {
+    if (0 <= change && change <= remaining) {
+      out.write(Bits.ONE);
+      out.writeBoundedLong(change, remaining);
+    }
+    else {
+      out.write(Bits.ZERO);
+      writeGamma(out, zigzag(change) + 1);
+    }
+  }
+  
+  private static long readChange(BitInputStream in, long remaining) throws IOException {
+    return in.readBool() ? in.readBoundedLong(remaining) : unzigzag(readGamma(in) - 1);
+  }
+  
+  private static long zigzag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+  
+  private static long unzigzag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+  
+  /**
+   * Writes a positive value in Elias gamma code, so that small count adjustments take only a few bits.
+   */
+  private static void writeGamma(BitOutputStream out, long value) throws IOException {
+    int bits = 64 - Long.numberOfLeadingZeros(value);
+    if (bits > 1) out.write(new Bits(0, bits - 1));
+    out.write(new Bits(value, bits));
+  }
+  
+  private static long readGamma(BitInputStream in) throws IOException {
+    int zeros = 0;
+    while (!in.readBool()) zeros++;
+    return 0 == zeros ? 1 : (1L << zeros) | in.read(zeros).toLong();
+  }
+}
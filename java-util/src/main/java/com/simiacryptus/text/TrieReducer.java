@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2018 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.text;
+
+import com.simiacryptus.util.data.SerialArrayList;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BiFunction;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Combines two tries node by node, as CharTrie.reduceSimple. Each node's children are found by a merge-join over the
+ * two token-sorted child blocks, and the result is written straight into node arrays; the subtrees under the root's
+ * children are built in parallel and concatenated. Nodes are laid out exactly as the recursive writeChildren
+ * traversal lays them out: each node's children block is appended when the node is visited, in depth-first order.
+ */
+final class TrieReducer {
+  
+  private final SerialArrayList<NodeData> left;
+  private final SerialArrayList<NodeData> right;
+  private final BiFunction<Long, Long, Long> fn;
+  
+  /**
+   * Instantiates a new Trie reducer.
+   *
+   * @param left  the left
+   * @param right the right
+   * @param fn    the count function, given null for a node missing on one side
+   */
+  TrieReducer(CharTrie left, CharTrie right, BiFunction<Long, Long, Long> fn) {
+    this.left = left.nodes;
+    this.right = right.nodes;
+    this.fn = fn;
+  }
+  
+  /**
+   * Reduces the tries into a new trie; cursor details are not yet computed.
+   *
+   * @return the char trie
+   */
+  CharTrie reduce() {
+    Subtree top = new Subtree();
+    top.expand(-1, 0, 0);
+    List<Subtree> subtrees = IntStream.range(0, top.size).parallel().mapToObj(i -> {
+      Subtree subtree = new Subtree();
+      subtree.build(top.leftIndex[i], top.rightIndex[i]);
+      return subtree;
+    }).collect(Collectors.toList());
+    int[] offsets = new int[subtrees.size() + 1];
+    offsets[0] = 1 + top.size;
+    for (int i = 0; i < subtrees.size(); i++) {
+      offsets[i + 1] = offsets[i] + subtrees.get(i).size;
+    }
+    CharTrie result = new CharTrieIndex();
+    SerialArrayList<NodeData> nodes = result.nodes;
+    int nodeCount = offsets[subtrees.size()];
+    nodes.set(0, new NodeData(NodewalkerCodec.END_OF_STRING, (short) top.size, 1, -1, 0));
+    if (nodeCount > 1) nodes.set(nodeCount - 1, new NodeData(NodewalkerCodec.END_OF_STRING, (short) 0, -1, 0, -1));
+    IntStream.range(0, top.size).parallel().forEach(i -> {
+      nodes.set(1 + i, new NodeData(top.tokens[i], subtrees.get(i).rootChildren, offsets[i] + subtrees.get(i).rootFirstChild, top.counts[i], -1));
+      subtrees.get(i).writeTo(nodes, offsets[i]);
+    });
+    return result;
+  }
+  
+  /**
+   * The nodes below one child of the root, indexed from zero in layout order.
+   */
+  private class Subtree {
+    int size = 0;
+    char[] tokens = new char[16];
+    long[] counts = new long[16];
+    short[] numberOfChildren = new short[16];
+    int[] firstChild = new int[16];
+    int[] leftIndex = new int[16];
+    int[] rightIndex = new int[16];
+    short rootChildren;
+    int rootFirstChild;
+    
+    /**
+     * Visits the subtree's nodes depth-first with an explicit stack, appending each node's children as it is visited.
+     */
+    void build(int leftRoot, int rightRoot) {
+      rootFirstChild = size;
+      rootChildren = expand(-1, leftRoot, rightRoot);
+      int[] stack = new int[16];
+      int depth = 0;
+      for (int i = size - 1; i >= 0; i--) {
+        if (depth == stack.length) stack = Arrays.copyOf(stack, 2 * depth);
+        stack[depth++] = i;
+      }
+      while (depth > 0) {
+        int node = stack[--depth];
+        int first = size;
+        expand(node, leftIndex[node], rightIndex[node]);
+        for (int i = size - 1; i >= first; i--) {
+          if (depth == stack.length) stack = Arrays.copyOf(stack, 2 * depth);
+          stack[depth++] = i;
+        }
+      }
+    }
+    
+    /**
+     * Appends the reduced children of a pair of source nodes, either of which may be absent (-1).
+     *
+     * @return the number of children appended
+     */
+    short expand(int node, int leftNode, int rightNode) {
+      NodeData leftData = leftNode < 0 ? null : left.get(leftNode);
+      NodeData rightData = rightNode < 0 ? null : right.get(rightNode);
+      int l = null == leftData ? 0 : leftData.firstChildIndex;
+      int lEnd = null == leftData ? 0 : l + Math.max(0, leftData.numberOfChildren);
+      int r = null == rightData ? 0 : rightData.firstChildIndex;
+      int rEnd = null == rightData ? 0 : r + Math.max(0, rightData.numberOfChildren);
+      int first = size;
+      NodeData leftChild = l < lEnd ? left.get(l) : null;
+      NodeData rightChild = r < rEnd ? right.get(r) : null;
+      while (null != leftChild || null != rightChild) {
+        char token;
+        int leftMatch = -1;
+        int rightMatch = -1;
+        if (null == rightChild || (null != leftChild && leftChild.token < rightChild.token)) {
+          token = leftChild.token;
+        }
+        else if (null == leftChild || rightChild.token < leftChild.token) {
+          token = rightChild.token;
+        }
+        else {
+          token = leftChild.token;
+        }
+        Long leftCount = null;
+        Long rightCount = null;
+        if (null != leftChild && leftChild.token == token) {
+          leftCount = leftChild.cursorCount;
+          leftMatch = l++;
+          leftChild = l < lEnd ? left.get(l) : null;
+        }
+        if (null != rightChild && rightChild.token == token) {
+          rightCount = rightChild.cursorCount;
+          rightMatch = r++;
+          rightChild = r < rEnd ? right.get(r) : null;
+        }
+        long count = fn.apply(leftCount, rightCount);
+        if (count > 0) append(token, count, leftMatch, rightMatch);
+      }
+      short children = (short) (size - first);
+      if (node >= 0) {
+        numberOfChildren[node] = children;
+        firstChild[node] = first;
+      }
+      return children;
+    }
+    
+    private void append(char token, long count, int leftMatch, int rightMatch) {
+      if (size == tokens.length) {
+        int capacity = 2 * size;
+        tokens = Arrays.copyOf(tokens, capacity);
+        counts = Arrays.copyOf(counts, capacity);
+        numberOfChildren = Arrays.copyOf(numberOfChildren, capacity);
+        firstChild = Arrays.copyOf(firstChild, capacity);
+        leftIndex = Arrays.copyOf(leftIndex, capacity);
+        rightIndex = Arrays.copyOf(rightIndex, capacity);
+      }
+      tokens[size] = token;
+      counts[size] = count;
+      leftIndex[size] = leftMatch;
+      rightIndex[size] = rightMatch;
+      size++;
+    }
+    
+    void writeTo(SerialArrayList<NodeData> nodes, int offset) {
+      for (int i = 0; i < size; i++) {
+        nodes.set(offset + i, new NodeData(tokens[i], numberOfChildren[i], offset + firstChild[i], counts[i], -1));
+      }
+    }
+  }
+}
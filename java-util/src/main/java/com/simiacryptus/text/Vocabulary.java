@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2018 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.text;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Numbers the words of a token trie. Word ids are carried through the char trie engine as single chars, id + 1, so that
+ * a sequence of words is a string of one char per word; END_OF_STRING, UNKNOWN, ESCAPE and FALLBACK stay reserved,
+ * which bounds the vocabulary at CAPACITY words.
+ */
+public class Vocabulary {
+  
+  /**
+   * The largest number of words, mapped to the chars between END_OF_STRING and UNKNOWN.
+   */
+  public static final int CAPACITY = NodewalkerCodec.ESCAPE - 2;
+  /**
+   * The char standing for a word not in the vocabulary, which no word id maps to.
+   */
+  public static final char UNKNOWN = (char) (NodewalkerCodec.ESCAPE - 1);
+  
+  private final Map<String, Integer> ids = new HashMap<>();
+  private final List<String> words = new ArrayList<>();
+  
+  /**
+   * The char standing for a word id.
+   *
+   * @param id the id
+   * @return the char
+   */
+  public static char toChar(int id) {
+    if (id < 0 || id >= CAPACITY) throw new IllegalArgumentException("Word id out of range: " + id);
+    return (char) (id + 1);
+  }
+  
+  /**
+   * The word id a char stands for.
+   *
+   * @param token the token
+   * @return the id
+   */
+  public static int toId(char token) {
+    return token - 1;
+  }
+  
+  /**
+   * Gets the id of a word, adding it if it is new.
+   *
+   * @param word the word
+   * @return the id
+   */
+  public synchronized int getId(String word) {
+    Integer id = ids.get(word);
+    if (null != id) return id;
+    if (words.size() >= CAPACITY) throw new IllegalStateException("Vocabulary is full");
+    ids.put(word, words.size());
+    words.add(word);
+    return words.size() - 1;
+  }
+  
+  /**
+   * Finds the id of a word.
+   *
+   * @param word the word
+   * @return the id, or -1 if the word is not in the vocabulary
+   */
+  public synchronized int find(String word) {
+    return ids.getOrDefault(word, -1);
+  }
+  
+  /**
+   * Gets the word with an id.
+   *
+   * @param id the id
+   * @return the word
+   */
+  public synchronized String getWord(int id) {
+    if (id < 0 || id >= words.size()) throw new IllegalArgumentException("Unknown word id: " + id);
+    return words.get(id);
+  }
+  
+  /**
+   * The number of words.
+   *
+   * @return the int
+   */
+  public synchronized int size() {
+    return words.size();
+  }
+  
+  /**
+   * Encodes words as a string of one char each, adding any new words.
+   *
+   * @param words the words
+   * @return the string
+   */
+  public String encode(List<String> words) {
+    char[] chars = new char[words.size()];
+    for (int i = 0; i < chars.length; i++) chars[i] = toChar(getId(words.get(i)));
+    return new String(chars);
+  }
+  
+  /**
+   * Encodes words as a string of one char each, leaving the vocabulary unchanged; words not in it are written as
+   * UNKNOWN.
+   *
+   * @param words the words
+   * @return the string
+   */
+  public String lookup(List<String> words) {
+    char[] chars = new char[words.size()];
+    for (int i = 0; i < chars.length; i++) {
+      int id = find(words.get(i));
+      chars[i] = id < 0 ? UNKNOWN : toChar(id);
+    }
+    return new String(chars);
+  }
+  
+  /**
+   * Decodes a string of word chars.
+   *
+   * @param text the text
+   * @return the words
+   */
+  public List<String> decode(String text) {
+    List<String> list = new ArrayList<>(text.length());
+    for (int i = 0; i < text.length(); i++) list.add(getWord(toId(text.charAt(i))));
+    return list;
+  }
+}
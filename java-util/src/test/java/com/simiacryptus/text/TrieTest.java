@@ -29,11 +29,15 @@ import org.junit.Ignore;
 import org.junit.Test;
 import org.junit.experimental.categories.Category;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.*;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
@@ -90,6 +94,195 @@ public class TrieTest {
     return map;
   }
   
+  /**
+   * The boundaries splitChars found before its single-pass scanner, kept as a reference: each position re-walks the trie
+   * for the minimum-entropy prior and following contexts.
+   */
+  private static List<String> referenceSplitChars(CharTrie trie, String source, double threshold) {
+    List<String> output = new ArrayList<>();
+    int wordStart = 0;
+    double aposterioriNatsPrev = 0;
+    boolean isIncreasing = false;
+    double prevLink = 0;
+    for (int i = 1; i < source.length(); i++) {
+      TrieNode priorNode = referenceMaxentPrior(trie, source.substring(0, i));
+      double aprioriNats = referenceEntropy(priorNode, priorNode.getParent());
+      TrieNode followingNode = referenceMaxentPost(trie, source.substring(i - 1, source.length()));
+      double aposterioriNats = referenceEntropy(followingNode, followingNode.godparent());
+      double linkNats = aprioriNats + aposterioriNatsPrev;
+      String word = i < 2 ? "" : source.substring(wordStart, i - 2);
+      if (isIncreasing && linkNats < prevLink && prevLink > threshold && word.length() > 2) {
+        wordStart = i - 2;
+        output.add(word);
+        isIncreasing = false;
+      }
+      else if (linkNats > prevLink) {
+        isIncreasing = true;
+      }
+      prevLink = linkNats;
+      aposterioriNatsPrev = aposterioriNats;
+    }
+    return output;
+  }
+  
+  private static TrieNode referenceMaxentPost(CharTrie trie, String followingText) {
+    TrieNode followingNode = trie.traverse(followingText);
+    double nats = referenceEntropy(followingNode, followingNode.godparent());
+    while (followingText.length() > 1) {
+      String shorter = followingText.substring(0, followingText.length() - 1);
+      TrieNode shorterNode = trie.traverse(shorter);
+      double shorterNats = referenceEntropy(shorterNode, shorterNode.godparent());
+      if (shorterNats >= nats) break;
+      nats = shorterNats;
+      followingNode = shorterNode;
+      followingText = shorter;
+    }
+    return followingNode;
+  }
+  
+  private static TrieNode referenceMaxentPrior(CharTrie trie, String priorText) {
+    TrieNode priorNode = trie.matchEnd(priorText);
+    double nats = referenceEntropy(priorNode, priorNode.getParent());
+    while (priorText.length() > 1) {
+      String shorter = priorText.substring(1);
+      TrieNode shorterNode = trie.matchEnd(shorter);
+      double shorterNats = referenceEntropy(shorterNode, shorterNode.getParent());
+      if (shorterNats >= nats) break;
+      nats = shorterNats;
+      priorText = shorter;
+      priorNode = shorterNode;
+    }
+    return priorNode;
+  }
+  
+  private static double referenceEntropy(TrieNode tokenNode, TrieNode contextNode) {
+    return -0.0 + (null == contextNode ? Double.POSITIVE_INFINITY : (-Math.log(tokenNode.getCursorCount() * 1.0 / contextNode.getCursorCount())));
+  }
+  
+  /**
+   * The reduceSimple built before TrieReducer, kept as a reference: each node's children are reduced over TreeMaps and
+   * written by a recursive depth-first walk.
+   */
+  private static CharTrie referenceReduceSimple(CharTrie left, CharTrie right, BiFunction<Long, Long, Long> fn) {
+    CharTrie result = new CharTrieIndex();
+    referenceReduceSubtree(left.root(), right.root(), result.root(), fn);
+    return result.recomputeCursorDetails();
+  }
+  
+  private static void referenceReduceSubtree(TrieNode sourceNodeA, TrieNode sourceNodeB, TrieNode destNode, BiFunction<Long, Long, Long> fn) {
+    TreeMap<Character, ? extends TrieNode> sourceChildrenA = null == sourceNodeA ? new TreeMap<>() : sourceNodeA.getChildrenMap();
+    TreeMap<Character, ? extends TrieNode> sourceChildrenB = null == sourceNodeB ? new TreeMap<>() : sourceNodeB.getChildrenMap();
+    TreeMap<Character, Long> counts = new TreeMap<>();
+    Stream.of(sourceChildrenA.keySet(), sourceChildrenB.keySet()).flatMap(x -> x.stream()).distinct().forEach(c -> {
+      TrieNode childA = sourceChildrenA.get(c);
+      TrieNode childB = sourceChildrenB.get(c);
+      counts.put(c, fn.apply(null == childA ? null : childA.getCursorCount(), null == childB ? null : childB.getCursorCount()));
+    });
+    destNode.writeChildren(counts);
+    destNode.getChildrenMap().forEach((key, newChild) -> referenceReduceSubtree(sourceChildrenA.get(key), sourceChildrenB.get(key), newChild, fn));
+  }
+  
+  /**
+   * The recomputeCursorDetails before its iterative rewrite, kept as a reference: counts are summed bottom-up and
+   * positions assigned top-down by two recursive walks.
+   */
+  private static CharTrie referenceRecomputeCursorDetails(CharTrie trie) {
+    trie.godparentIndex = new int[trie.getNodeCount()];
+    trie.parentIndex = new int[trie.getNodeCount()];
+    Arrays.fill(trie.godparentIndex, -1);
+    Arrays.fill(trie.parentIndex, -1);
+    referenceCursorTotals(trie, trie.root());
+    referenceCursorPositions(trie.root(), 0);
+    return trie;
+  }
+  
+  private static NodeData referenceCursorTotals(CharTrie trie, TrieNode node) {
+    trie.parentIndex[node.index] = null == node.getParent() ? -1 : node.getParent().index;
+    List<NodeData> newChildren = node.getChildren().map(child -> referenceCursorTotals(trie, child)).collect(Collectors.toList());
+    if (newChildren.isEmpty()) return node.getData();
+    long cursorCount = newChildren.stream().mapToLong(n -> n.cursorCount).sum();
+    return node.update(d -> d.setCursorCount(cursorCount));
+  }
+  
+  private static void referenceCursorPositions(TrieNode node, long position) {
+    node.update(n -> n.setFirstCursorIndex(position));
+    long childPosition = position;
+    for (TrieNode child : node.getChildren().collect(Collectors.toList())) {
+      referenceCursorPositions(child, childPosition);
+      childPosition += child.getCursorCount();
+    }
+  }
+  
+  /**
+   * Non-destructive TextGenerator.generateDictionary before its best-first search, kept as a reference: each step takes
+   * the maximum over every descendant within the lookahead, falling back to shorter lookaheads and then the godparent.
+   */
+  private static String referenceGenerateDictionary(CharTrie trie, int length, int context, int lookahead) {
+    String str = "";
+    String prefix = "";
+    while (str.length() < length) {
+      TrieNode node = prefix.isEmpty() ? trie.root() : trie.matchPredictor(prefix);
+      if (null == node) {
+        prefix = prefix.substring(1);
+      }
+      TrieNode nextNode = referenceMaxNextNode(node, lookahead);
+      if (null == nextNode) break;
+      String next = nextNode.getString(node);
+      str += next;
+      prefix = str.substring(Math.max(str.length() - context, 0), str.length());
+      if (next.isEmpty()) {
+        if (prefix.isEmpty()) {
+          break;
+        }
+        else {
+          prefix = prefix.substring(1);
+        }
+      }
+      if (nextNode.getChar() == NodewalkerCodec.END_OF_STRING) {
+        prefix = "";
+      }
+    }
+    return str.substring(0, Math.min(length, str.length()));
+  }
+  
+  private static TrieNode referenceMaxNextNode(TrieNode node, int lookahead) {
+    Stream<TrieNode> childStream = node.getChildren().map(x -> x);
+    for (int level = 0; level < lookahead; level++) {
+      childStream = childStream.flatMap(child -> child.hasChildren() ? child.getChildren() : Stream.of(child));
+    }
+    TrieNode result = childStream.max(Comparator.comparingLong(x -> x.getCursorCount())).orElse(null);
+    if (null == result) {
+      if (lookahead > 0) {
+        return referenceMaxNextNode(node, lookahead - 1);
+      }
+      TrieNode godparent = node.godparent();
+      if (null != godparent) {
+        return referenceMaxNextNode(godparent, lookahead);
+      }
+    }
+    return result;
+  }
+  
+  private static String describeTree(Function<String, Map<String, Double>> tree) {
+    if (tree instanceof ClassificationTree.SplitNode) {
+      ClassificationTree.SplitNode split = (ClassificationTree.SplitNode) tree;
+      return String.format("\"%s\"(%s, %s)", split.split, describeTree(split.contains), describeTree(split.absent));
+    }
+    return new TreeMap<>(((ClassificationTree.LeafNode) tree).distribution).toString();
+  }
+  
+  private static CharTrie randomTrie(Random random, int documents) {
+    String alphabet = "abcdef".substring(random.nextInt(3), 3 + random.nextInt(4));
+    List<String> text = IntStream.range(0, documents).mapToObj(i -> IntStream.range(0, 1 + random.nextInt(12))
+      .mapToObj(j -> Character.toString(alphabet.charAt(random.nextInt(alphabet.length())))).collect(Collectors.joining()))
+      .collect(Collectors.toList());
+    return CharTrieIndex.indexFulltext(text, 1 + random.nextInt(6), 0);
+  }
+  
+  private static List<NodeData> nodeList(CharTrie trie) {
+    return IntStream.range(0, trie.nodes.length()).mapToObj(trie.nodes::get).collect(Collectors.toList());
+  }
+  
   /**
    * Test functionality.
    *
@@ -118,6 +311,574 @@ public class TrieTest {
     Assert.assertEquals(1, tree.traverse("a quick").getCursorCount());
   }
   
+  /**
+   * Test document postings.
+   */
+  @Test
+  @Category(TestCategories.UnitTest.class)
+  public void testDocumentPostings() {
+    CharTrieIndex tree = new CharTrieIndex();
+    tree.addDocument("a quick brown fox jumped over the lazy dog");
+    tree.addDocument("this is a test. this is only a test. - nikola tesla");
+    tree.addDocument("the dog is lazy");
+    tree.index(4);
+    Assert.assertEquals(3, tree.traverse("t").getDocumentFrequency());
+    Assert.assertEquals(2, tree.traverse("dog").getDocumentFrequency());
+    Assert.assertEquals(1, tree.traverse("tes").getDocumentFrequency());
+    Assert.assertTrue(Arrays.equals(new int[]{0, 2}, tree.traverse("dog").getDocumentIds().toArray()));
+    Assert.assertEquals(2, tree.traverse("lazy").getDocuments().cardinality());
+    Assert.assertTrue(tree.traverse("tes").containsDocument(1));
+    Assert.assertFalse(tree.traverse("tes").containsDocument(0));
+    Assert.assertFalse(tree.traverse("tes").containsDocument(2));
+  }
+  
+  /**
+   * Test substring query.
+   */
+  @Test
+  @Category(TestCategories.UnitTest.class)
+  public void testSubstringQuery() {
+    CharTrieIndex tree = new CharTrieIndex();
+    tree.addDocument("a quick brown fox jumped over the lazy dog");
+    tree.addDocument("this is a test. this is only a test. - nikola tesla");
+    tree.addDocument("the dog is lazy");
+    tree.index(3);
+    SubstringQuery query = SubstringQuery.and(SubstringQuery.term("the"), SubstringQuery.not(SubstringQuery.term("fox")));
+    Assert.assertTrue(Arrays.equals(new int[]{2}, query.documents(tree)));
+    query = SubstringQuery.or(SubstringQuery.term("lazy dog"), SubstringQuery.term("tesla"));
+    Assert.assertTrue(Arrays.equals(new int[]{0, 1}, query.documents(tree)));
+    List<SubstringQuery.Match> matches = SubstringQuery.term("is").top(tree, 2);
+    Assert.assertEquals(2, matches.size());
+    Assert.assertEquals(1, matches.get(0).documentId);
+    Assert.assertTrue(Arrays.equals(new int[]{2, 5, 18, 21}, matches.get(0).positions.get("is")));
+  }
+  
+  /**
+   * Test external index builder.
+   *
+   * @throws IOException the io exception
+   */
+  @Test
+  @Category(TestCategories.UnitTest.class)
+  public void testExternalIndexBuilder() throws IOException {
+    Random random = new Random(7);
+    List<String> documents = IntStream.range(0, 300).mapToObj(i -> IntStream.range(0, random.nextInt(40))
+      .mapToObj(j -> Character.toString((char) ('a' + random.nextInt(5)))).collect(Collectors.joining()))
+      .collect(Collectors.toList());
+    CharTrieIndex reference = new CharTrieIndex();
+    documents.forEach(reference::addDocument);
+    reference.index(4);
+    File workDir = java.nio.file.Files.createTempDirectory("runs").toFile();
+    for (long budget : new long[]{Long.MAX_VALUE, 16 * 1024}) {
+      ExternalIndexBuilder builder = new ExternalIndexBuilder(workDir, 4, 0, budget);
+      documents.forEach(builder::addDocument);
+      CharTrie trie = builder.build();
+      Assert.assertEquals(reference.getNodeCount(), trie.getNodeCount());
+      for (String str : Arrays.asList("a", "ab", "cde", "eeee", "dcba")) {
+        Assert.assertEquals(str, reference.traverse(str).getCursorCount(), trie.traverse(str).getCursorCount());
+      }
+    }
+    workDir.delete();
+  }
+  
+  /**
+   * Test serialized trie merge.
+   */
+  @Test
+  @Category(TestCategories.UnitTest.class)
+  public void testSerializedTrieMerge() {
+    Random random = new Random(11);
+    ConvolutionalTrieSerializer serializer = new ConvolutionalTrieSerializer();
+    List<CharTrie> tries = IntStream.range(0, 3).mapToObj(i -> {
+      CharTrieIndex index = new CharTrieIndex();
+      IntStream.range(0, 20).mapToObj(j -> IntStream.range(0, random.nextInt(30))
+        .mapToObj(k -> Character.toString((char) ('a' + random.nextInt(4 + i)))).collect(Collectors.joining()))
+        .forEach(index::addDocument);
+      return index.index(5).truncate();
+    }).collect(Collectors.toList());
+    byte[] merged = SerializedTrieMerger.merge(tries.stream().map(serializer::serialize).toArray(byte[][]::new));
+    CharTrie sum = tries.get(0).add(tries.get(1)).add(tries.get(2));
+    Assert.assertTrue(Arrays.equals(serializer.serialize(sum), merged));
+    Assert.assertEquals(sum.getNodeCount(), serializer.deserialize(merged).getNodeCount());
+  }
+  
+  /**
+   * Test trie delta.
+   */
+  @Test
+  @Category(TestCategories.UnitTest.class)
+  public void testTrieDelta() {
+    Random random = new Random(5);
+    String[] words = "the quick brown fox jumped over a lazy dog".split(" ");
+    List<String> documents = IntStream.range(0, 500).mapToObj(i -> IntStream.range(0, 6)
+      .mapToObj(j -> words[random.nextInt(words.length)]).collect(Collectors.joining(" "))).collect(Collectors.toList());
+    CharTrieIndex baseIndex = new CharTrieIndex();
+    documents.forEach(baseIndex::addDocument);
+    CharTrie base = baseIndex.index(5).truncate();
+    CharTrieIndex targetIndex = new CharTrieIndex();
+    documents.forEach(targetIndex::addDocument);
+    targetIndex.addDocument("the quick zebra");
+    CharTrie target = targetIndex.index(5).truncate();
+    
+    ConvolutionalTrieSerializer serializer = new ConvolutionalTrieSerializer();
+    byte[] delta = TrieDelta.diff(base, target);
+    Assert.assertFalse(TrieDelta.isCountsOnly(delta));
+    Assert.assertTrue(delta.length < serializer.serialize(target).length / 4);
+    Assert.assertTrue(Arrays.equals(serializer.serialize(target), serializer.serialize(TrieDelta.apply(base, delta))));
+    
+    CharTrie doubled = base.add(base);
+    delta = TrieDelta.diff(base, doubled);
+    Assert.assertTrue(TrieDelta.isCountsOnly(delta));
+    Assert.assertTrue(Arrays.equals(serializer.serialize(doubled), serializer.serialize(TrieDelta.applyInPlace(new CharTrie(base), delta))));
+  }
+  
+  /**
+   * Test reduce against reference.
+   */
+  @Test
+  @Category(TestCategories.UnitTest.class)
+  public void testReduceReference() {
+    Random random = new Random(35);
+    for (int i = 0; i < 50; i++) {
+      CharTrie left = randomTrie(random, 1 + random.nextInt(20));
+      CharTrie right = randomTrie(random, 1 + random.nextInt(20));
+      Assert.assertEquals(nodeList(referenceReduceSimple(left, right, (l, r) -> (null == l ? 0 : l) + (null == r ? 0 : r))), nodeList(left.add(right)));
+      Assert.assertEquals(nodeList(referenceReduceSimple(left, right, (l, r) -> (null == l ? 0 : l) * (null == r ? 0 : r))), nodeList(left.product(right)));
+      Assert.assertEquals(nodeList(referenceReduceSimple(left, right, (l, r) -> null == r ? 0 : ((null == l ? 0 : l) * 3 / r))), nodeList(left.divide(right, 3)));
+    }
+  }
+  
+  /**
+   * Test recompute cursor details against reference.
+   */
+  @Test
+  @Category(TestCategories.UnitTest.class)
+  public void testRecomputeCursorDetails() {
+    Random random = new Random(36);
+    for (int i = 0; i < 50; i++) {
+      CharTrie trie = new CharTrie(randomTrie(random, 1 + random.nextInt(20)));
+      for (int node = 0; node < trie.nodes.length(); node++) {
+        long count = 1 + random.nextInt(10);
+        trie.nodes.update(node, d -> d.setCursorCount(count).setFirstCursorIndex(-1));
+      }
+      CharTrie expected = referenceRecomputeCursorDetails(new CharTrie(trie));
+      CharTrie actual = new CharTrie(trie).recomputeCursorDetails();
+      Assert.assertEquals(nodeList(expected), nodeList(actual));
+      Assert.assertTrue(Arrays.equals(expected.parentIndex, actual.parentIndex));
+    }
+    
+    // A chain far deeper than the recursive walks could descend without overflowing the stack
+    int depth = 200000;
+    CharTrie chain = new CharTrie();
+    chain.nodes.update(0, d -> d.setFirstChildIndex(1).setNumberOfChildren((short) 1));
+    for (int node = 1; node <= depth; node++) {
+      boolean leaf = node == depth;
+      chain.nodes.add(new NodeData('a', (short) (leaf ? 0 : 1), leaf ? -1 : node + 1, leaf ? 7 : -1, -1));
+    }
+    chain.recomputeCursorDetails();
+    for (int node = 0; node <= depth; node++) {
+      Assert.assertEquals(7, chain.nodes.get(node).cursorCount);
+      Assert.assertEquals(0, chain.nodes.get(node).firstCursorIndex);
+      Assert.assertEquals(node - 1, chain.parentIndex[node]);
+    }
+  }
+  
+  /**
+   * Test dictionary generation against reference.
+   */
+  @Test
+  @Category(TestCategories.UnitTest.class)
+  public void testGenerateDictionaryReference() {
+    Random random = new Random(26);
+    String[] words = "the quick brown fox jumped over a lazy dog".split(" ");
+    List<String> documents = IntStream.range(0, 10).mapToObj(i -> IntStream.range(0, 40)
+      .mapToObj(j -> words[random.nextInt(words.length)]).collect(Collectors.joining(" "))).collect(Collectors.toList());
+    CharTrie trie = CharTrieIndex.indexFulltext(documents, 6, 0).truncate();
+    for (int context = 1; context <= 4; context++) {
+      for (int lookahead = 0; lookahead <= 4; lookahead++) {
+        String expected = referenceGenerateDictionary(trie, 500, context, lookahead);
+        Assert.assertEquals(context + "/" + lookahead, expected, trie.getGenerator().generateDictionary(500, context, "", lookahead, false));
+      }
+    }
+  }
+  
+  /**
+   * Test bidirectional index.
+   */
+  @Test
+  @Category(TestCategories.UnitTest.class)
+  public void testBidirectionalIndex() {
+    Random random = new Random(7);
+    String[] words = "the quick brown fox jumped over a lazy dog".split(" ");
+    List<String> documents = IntStream.range(0, 200).mapToObj(i -> IntStream.range(0, 4)
+      .mapToObj(j -> words[random.nextInt(words.length)]).collect(Collectors.joining(" "))).collect(Collectors.toList());
+    CharTrieIndex forward = new CharTrieIndex();
+    CharTrieIndex expected = new CharTrieIndex();
+    documents.forEach(document -> {
+      forward.addDocument(document);
+      expected.addDocument(new StringBuilder(document).reverse().toString());
+    });
+    forward.addDictionary("fox");
+    expected.addDictionary("xof");
+    CharTrieIndex reversed = forward.indexBidirectional(6, 1);
+    expected.index(6, 1);
+    
+    ConvolutionalTrieSerializer serializer = new ConvolutionalTrieSerializer();
+    Assert.assertTrue(reversed.isReversed());
+    Assert.assertTrue(Arrays.equals(serializer.serialize(expected.truncate()), serializer.serialize(reversed.truncate())));
+    Assert.assertEquals(expected.traverse("xof").getDocumentFrequency(), reversed.traverse("xof").getDocumentFrequency());
+    Assert.assertEquals(forward.traverse("fox").getCursorCount(), reversed.traverse("xof").getCursorCount());
+  }
+  
+  /**
+   * Test weighted dictionary.
+   */
+  @Test
+  @Category(TestCategories.UnitTest.class)
+  public void testWeightedDictionary() {
+    Random random = new Random(11);
+    String[] words = "the quick brown fox jumped over a lazy dog".split(" ");
+    CharTrieIndex weighted = new CharTrieIndex();
+    CharTrieIndex expanded = new CharTrieIndex();
+    for (String word : words) {
+      int weight = 1 + random.nextInt(5);
+      weighted.addDictionary(word, weight);
+      IntStream.range(0, weight).forEach(i -> expanded.addDictionary(word));
+    }
+    weighted.addDocument("the lazy dog", 3);
+    IntStream.range(0, 3).forEach(i -> expanded.addDocument("the lazy dog"));
+    weighted.index(6, 1);
+    expanded.index(6, 1);
+    
+    Map<String, Long> weightedCounts = new TreeMap<>();
+    Map<String, Long> expandedCounts = new TreeMap<>();
+    weighted.root().visitFirst(node -> weightedCounts.put(node.getDebugString(), node.getCursorCount()));
+    expanded.root().visitFirst(node -> expandedCounts.put(node.getDebugString(), node.getCursorCount()));
+    Assert.assertEquals(expandedCounts, weightedCounts);
+    Assert.assertEquals(expanded.traverse("lazy").getCursorIndex(), weighted.traverse("lazy").getCursorIndex());
+    Assert.assertEquals(expanded.getIndexedSize(), weighted.getIndexedSize());
+    Assert.assertEquals(2, weighted.traverse("the").getDocumentFrequency());
+    Assert.assertEquals(2, weighted.traverse("the").getCursors().count());
+    String message = "the lazy fox";
+    NodewalkerCodec codec = weighted.getCodec();
+    Assert.assertEquals(message, codec.decodePPM(codec.encodePPM(message, 2).getBytes(), 2));
+    
+    // Weights totalling more than an int holds widen the cursor offsets
+    CharTrieIndex heavy = new CharTrieIndex();
+    IntStream.range(0, 20).forEach(i -> heavy.addDocument("ab"));
+    heavy.addDictionary("ab", Integer.MAX_VALUE);
+    heavy.addDocument("ac", 2);
+    heavy.index(3, 0);
+    Assert.assertEquals(Integer.MAX_VALUE + 22L, heavy.traverse("a").getCursorCount());
+    Assert.assertEquals(Integer.MAX_VALUE + 20L, heavy.traverse("ab").getCursorCount());
+    Assert.assertEquals(20, heavy.traverse("b").getCursorCount());
+    Assert.assertEquals(2, heavy.traverse("ac").getCursorCount());
+    Assert.assertEquals(1, heavy.traverse("ac").getCursors().count());
+  }
+  
+  /**
+   * Test top nodes.
+   */
+  @Test
+  @Category(TestCategories.UnitTest.class)
+  public void testTopNodes() {
+    Random random = new Random(3);
+    CharTrieIndex index = new CharTrieIndex();
+    IntStream.range(0, 100).forEach(i -> index.addDocument(IntStream.range(0, 50)
+      .mapToObj(j -> Character.toString((char) ('a' + random.nextInt(4)))).collect(Collectors.joining())));
+    CharTrie trie = index.index(6).truncate();
+    Function<TrieNode, Long> count4 = node -> 4 == node.getDepth() ? node.getCursorCount() : -1;
+    List<Long> expected = trie.root().streamDecendents(4).map(count4).sorted(Comparator.reverseOrder()).limit(20).collect(Collectors.toList());
+    Assert.assertEquals(expected, trie.max(count4, 20).map(count4).collect(Collectors.toList()));
+    Assert.assertEquals(expected, trie.max(count4, node -> node.getDepth() > 4 ? -1 : node.getCursorCount(), 20).map(count4).collect(Collectors.toList()));
+  }
+  
+  /**
+   * Test top nodes with ties.
+   */
+  @Test
+  @Category(TestCategories.UnitTest.class)
+  public void testTopNodesTies() {
+    Random random = new Random(5);
+    CharTrieIndex index = new CharTrieIndex();
+    IntStream.range(0, 100).forEach(i -> index.addDocument(IntStream.range(0, 50)
+      .mapToObj(j -> Character.toString((char) ('a' + random.nextInt(4)))).collect(Collectors.joining())));
+    CharTrie trie = index.index(6).truncate();
+    Function<TrieNode, Integer> atDepth3 = node -> 3 == node.getDepth() ? 1 : 0;
+    List<Integer> expected = trie.max(atDepth3, 10).map(node -> node.index).collect(Collectors.toList());
+    for (int i = 0; i < 20; i++) {
+      Assert.assertEquals(expected, trie.max(atDepth3, node -> node.getDepth() > 3 ? 0 : 1, 10).map(node -> node.index).collect(Collectors.toList()));
+    }
+  }
+  
+  /**
+   * Test prefix completer.
+   */
+  @Test
+  @Category(TestCategories.UnitTest.class)
+  public void testPrefixCompleter() {
+    List<String> words = Arrays.asList("tea", "tea", "tea", "team", "team", "team", "team", "ten", "ten", "test", "to", "toe", "toe", "a");
+    PrefixCompleter completer = CharTrieIndex.indexWords(words, 10, 0).completer(3, 100);
+    Assert.assertEquals(Arrays.asList("team", "tea", "ten"), completer.complete("te"));
+    Assert.assertEquals(Arrays.asList("toe", "to"), completer.complete("to"));
+    Assert.assertEquals(Arrays.asList("team", "tea", "ten"), completer.complete("t"));
+    Assert.assertTrue(completer.complete("x").isEmpty());
+  }
+  
+  /**
+   * Test compact.
+   */
+  @Test
+  @Category(TestCategories.UnitTest.class)
+  public void testCompact() {
+    CharTrieIndex tree = new CharTrieIndex();
+    tree.addDocument("a quick brown fox jumped over the lazy dog");
+    tree.addDocument("this is a test. this is only a test. - nikola tesla");
+    CharTrie trie = tree.index(4).truncate();
+    CharTrie compacted = trie.compact(3);
+    Assert.assertTrue(compacted.getNodeCount() < trie.getNodeCount());
+    Assert.assertEquals(trie.root().getCursorCount(), compacted.root().getCursorCount());
+    Assert.assertEquals(trie.traverse("te").getCursorCount(), compacted.traverse("te").getCursorCount());
+    Assert.assertEquals("o", compacted.traverse("og").getString());
+    long dropped = trie.traverse("t").getChildren().filter(x -> x.getCursorCount() < 3).mapToLong(TrieNode::getCursorCount).sum();
+    Assert.assertEquals(dropped, compacted.traverse("t").getChild(NodewalkerCodec.FALLBACK).get().getCursorCount());
+    Assert.assertTrue(trie.compactToSize(50).getNodeCount() <= 50);
+  }
+  
+  /**
+   * Test metrics.
+   */
+  @Test
+  @Category(TestCategories.UnitTest.class)
+  @SuppressWarnings("unchecked")
+  public void testMetrics() {
+    CharTrieIndex tree = new CharTrieIndex();
+    tree.addDocument("a quick brown fox jumped over the lazy dog");
+    tree.addDocument("this is a test. this is only a test. - nikola tesla");
+    tree.index(4);
+    Map<String, Object> metrics = tree.getMetrics();
+    Assert.assertEquals(tree.getNodeCount(), metrics.get("nodes"));
+    Map<Integer, Map<String, Object>> depths = (Map<Integer, Map<String, Object>>) metrics.get("depths");
+    Assert.assertEquals(5, depths.size());
+    Assert.assertEquals(tree.getNodeCount(), depths.values().stream().mapToInt(x -> (Integer) x.get("nodes")).sum());
+    Assert.assertEquals(tree.getNodeCount(), ((Map<Integer, Integer>) metrics.get("fanout")).values().stream().mapToInt(x -> x).sum());
+    List<Map<String, Object>> build = (List<Map<String, Object>>) metrics.get("build");
+    Assert.assertEquals(95L, build.get(0).get("cursorsMoved"));
+    Assert.assertEquals(0, build.get(build.size() - 1).get("nodesSplit"));
+  }
+  
+  /**
+   * Test codec metrics.
+   */
+  @Test
+  @Category(TestCategories.UnitTest.class)
+  @SuppressWarnings("unchecked")
+  public void testCodecMetrics() {
+    List<String> documents = Arrays.asList("a quick brown fox jumped over the lazy dog", "this is a test. this is only a test. - nikola tesla");
+    CharTrie trie = CharTrieIndex.indexFulltext(documents, 4, 0);
+    String text = "the quick test, zz";
+    Assert.assertEquals(text, trie.getCodec().decodePPM(trie.getCodec().encodePPM(text, 3).getBytes(), 3));
+    Map<String, Object> encode = (Map<String, Object>) trie.getCodec().getMetrics().get("encode");
+    Map<String, Object> decode = (Map<String, Object>) trie.getCodec().getMetrics().get("decode");
+    Assert.assertEquals(1L, encode.get("strings"));
+    Assert.assertEquals(1L, decode.get("strings"));
+    Assert.assertEquals(1L, encode.get("literals"));
+    Assert.assertEquals(encode.get("forwards"), decode.get("forwards"));
+    Assert.assertEquals(encode.get("backups"), decode.get("backups"));
+    Assert.assertEquals(encode.get("bits"), decode.get("bits"));
+    Assert.assertTrue((Double) encode.get("bitsPerChar") > 0);
+    Assert.assertEquals(1.0 / (Long) encode.get("chars"), (Double) encode.get("escapeRate"), 1e-9);
+    Assert.assertNotSame(trie.getCodec(), trie.getCodec());
+    Assert.assertEquals(encode, ((Map<String, Object>) trie.getMetrics().get("codec")).get("encode"));
+  }
+  
+  /**
+   * Test split chars.
+   */
+  @Test
+  @Category(TestCategories.UnitTest.class)
+  public void testSplitChars() {
+    List<String> documents = Arrays.asList("a quick brown fox jumped over the lazy dog", "this is a test. this is only a test. - nikola tesla", "the quick dog is a lazy fox");
+    CharTrie trie = CharTrieIndex.indexFulltext(documents, 6, 0);
+    TextAnalysis analysis = new TextAnalysis(trie);
+    List<String> texts = Arrays.asList("the lazy brown dog is only a test", "thequickfoxisatest");
+    Assert.assertEquals(Arrays.asList("the ", "lazy ", "brown ", "dog", " is ", "only"), analysis.splitChars(texts.get(0), 0.5));
+    Assert.assertEquals(Arrays.asList("the lazy ", "brown ", "dog", " is "), analysis.splitChars(texts.get(0), 1.0));
+    Assert.assertEquals(Arrays.asList("the", "quick", "fox", "isa"), analysis.splitChars(texts.get(1), 1.0));
+    Assert.assertEquals(texts.stream().map(text -> analysis.splitChars(text, 1.0)).collect(Collectors.toList()), analysis.splitChars(texts, 1.0));
+    
+    Random random = new Random(13);
+    String[] words = String.join(" ", documents).split(" ");
+    for (int i = 0; i < 200; i++) {
+      String text = IntStream.range(0, 2 + random.nextInt(10)).mapToObj(j -> random.nextInt(4) == 0 ? Character.toString((char) ('a' + random.nextInt(26))) : words[random.nextInt(words.length)])
+        .collect(Collectors.joining(random.nextBoolean() ? " " : ""));
+      for (double threshold : new double[]{0.0, 0.5, 1.0, 2.0, 4.0}) {
+        Assert.assertEquals(referenceSplitChars(trie, text, threshold), analysis.splitChars(text, threshold));
+      }
+    }
+  }
+  
+  /**
+   * Test keyword aggregation.
+   */
+  @Test
+  @Category(TestCategories.UnitTest.class)
+  public void testKeywordAggregation() {
+    KeywordAggregator aggregator = new KeywordAggregator(4);
+    aggregator.add("a test case", 1);
+    aggregator.add("xyz", 1);
+    aggregator.add("this is a", 2);
+    aggregator.add("is a t", 1);
+    aggregator.add("is a test", 3);
+    Map<String, Long> expected = new HashMap<>();
+    expected.put("this is a test case", 7L);
+    expected.put("xyz", 1L);
+    Assert.assertEquals(expected, aggregator.getCounts());
+  }
+  
+  /**
+   * Test fuzzy match.
+   */
+  @Test
+  @Category(TestCategories.UnitTest.class)
+  public void testFuzzyMatch() {
+    List<String> words = Arrays.asList("hello", "hello", "hello", "help", "help", "hall", "held", "world", "word", "word");
+    CharTrie trie = CharTrieIndex.indexWords(words, 10, 0);
+    Assert.assertEquals(Arrays.asList("hello", "help", "held"), trie.fuzzyMatch("helo", 1).stream().map(TrieNode::getString).collect(Collectors.toList()));
+    Assert.assertEquals(Arrays.asList("hello", "help", "held", "hall"), trie.fuzzyMatch("helo", 2).stream().map(TrieNode::getString).collect(Collectors.toList()));
+    Assert.assertEquals(3, trie.fuzzyMatch("helo", 1).get(0).getCursorCount());
+    Assert.assertEquals(Arrays.asList("hello", "held", "word", "world", "xyzzy"), trie.getAnalyzer().correctAll(Arrays.asList("helo", "held", "wrd", "worlx", "xyzzy")));
+    Assert.assertEquals("help", trie.getAnalyzer().correct("hel", 2));
+  }
+  
+  /**
+   * Test concurrent char trie.
+   */
+  @Test
+  @Category(TestCategories.UnitTest.class)
+  public void testConcurrentCharTrie() {
+    List<String> documents = IntStream.range(0, 200).mapToObj(i -> "document " + i + " of a test corpus").collect(Collectors.toList());
+    ConcurrentCharTrie concurrent = new ConcurrentCharTrie(5);
+    documents.parallelStream().forEach(concurrent::addDocument);
+    CharTrie frozen = concurrent.freeze();
+    CharTrie reference = CharTrieIndex.indexFulltext(documents, 5, 0);
+    Assert.assertEquals(reference.getNodeCount(), frozen.getNodeCount());
+    for (String text : Arrays.asList("", "d", "doc", "t 1", "pus", "s")) {
+      Assert.assertEquals(reference.traverse(text).getCursorCount(), frozen.traverse(text).getCursorCount());
+    }
+    Assert.assertEquals("ent ", frozen.traverse("ment ").godparent().getString());
+  }
+  
+  /**
+   * Test decaying char trie.
+   */
+  @Test
+  @Category(TestCategories.UnitTest.class)
+  public void testDecayingCharTrie() {
+    DecayingCharTrie decaying = new DecayingCharTrie(3, 1000).setHalfLife(10);
+    decaying.addDocument("abcd");
+    decaying.addDocument("xyzzyxyzz");
+    Assert.assertEquals(0.5, decaying.getWeight("ab"), 1e-9);
+    Assert.assertEquals(2.0, decaying.getWeight("yz"), 1e-9);
+    Assert.assertEquals(0.0, decaying.getWeight("ba"), 1e-9);
+    
+    DecayingCharTrie windowed = new DecayingCharTrie(3, 1000).setWindow(8);
+    Arrays.asList("abc", "abd", "xab").forEach(windowed::addDocument);
+    Assert.assertEquals(2.0, windowed.getWeight("ab"), 1e-9);
+    Assert.assertEquals(0.0, windowed.getWeight("abc"), 1e-9);
+    Assert.assertEquals(2, windowed.freeze().traverse("ab").getCursorCount());
+    
+    DecayingCharTrie bounded = new DecayingCharTrie(4, 50);
+    IntStream.range(0, 100).forEach(i -> bounded.addDocument("document " + i));
+    Assert.assertTrue(bounded.getNodeCount() <= 50);
+    Assert.assertEquals(100.0, bounded.getWeight("doc"), 1e-9);
+  }
+  
+  /**
+   * Test token trie.
+   */
+  @Test
+  @Category(TestCategories.UnitTest.class)
+  public void testTokenTrie() {
+    List<List<String>> documents = Arrays.asList(
+      Arrays.asList("the", "quick", "brown", "fox"),
+      Arrays.asList("the", "lazy", "dog"),
+      Arrays.asList("the", "quick", "dog"));
+    TokenTrie trie = TokenTrie.index(documents, 3, 0);
+    Assert.assertEquals(6, trie.getVocabulary().size());
+    Assert.assertEquals(3, trie.getCount(Arrays.asList("the")));
+    Assert.assertEquals(2, trie.getCount(Arrays.asList("the", "quick")));
+    Assert.assertEquals(1, trie.getCount(Arrays.asList("quick", "brown", "fox")));
+    Assert.assertEquals(0, trie.getCount(Arrays.asList("quick", "fox")));
+    Assert.assertEquals(0, trie.getCount(Arrays.asList("cat")));
+    Assert.assertEquals(2, trie.getCount(trie.getVocabulary().find("dog")));
+    List<String> message = Arrays.asList("the", "quick", "cat", "dog", "caf\u00e9", "cat");
+    byte[] data = trie.encodePPM(message, 2).getBytes();
+    Assert.assertEquals(6, trie.getVocabulary().size());
+    Assert.assertEquals(-1, trie.getVocabulary().find("cat"));
+    Assert.assertEquals(message, TokenTrie.index(documents, 3, 0).decodePPM(data, 2));
+  }
+  
+  /**
+   * Test byte trie.
+   */
+  @Test
+  @Category(TestCategories.UnitTest.class)
+  public void testByteTrie() {
+    List<String> documents = Arrays.asList("a quick brown fox jumped over the lazy dog", "this is a test. this is only a test. - nikola tesla", "na\u00efve caf\u00e9, \u6771\u4eac\u0000 \ud83d\ude00");
+    ByteTrie trie = ByteTrie.index(documents, 6, 0);
+    Assert.assertEquals(4, trie.getCount("is "));
+    Assert.assertEquals(1, trie.getCount("\u00e9"));
+    Assert.assertEquals(0, trie.getCount("zz"));
+    Assert.assertEquals("is ", ByteTrie.fromBytes(trie.traverse("is x").getString()));
+    for (String text : Arrays.asList(documents.get(2), "the test of \u6771\u4eac, \u2211 \u0000 \ud83d\ude00!")) {
+      Assert.assertEquals(text, ByteTrie.fromBytes(ByteTrie.toBytes(text)));
+      Assert.assertEquals(text, trie.decodePPM(trie.encodePPM(text, 3).getBytes(), 3));
+    }
+  }
+  
+  /**
+   * Test classification tree.
+   */
+  @Test
+  @Category(TestCategories.UnitTest.class)
+  public void testClassificationTree() {
+    Map<String, List<String>> categories = new TreeMap<>();
+    categories.put("head", IntStream.range(0, 15).mapToObj(i -> "the box " + i).collect(Collectors.toList()));
+    categories.put("tail", IntStream.range(0, 15).mapToObj(i -> i + "the box").collect(Collectors.toList()));
+    categories.put("other", IntStream.range(0, 15).mapToObj(i -> "cat " + i).collect(Collectors.toList()));
+    // "the box" plus the end-of-string token would split off the tail documents first, but such nodes are not candidates
+    String expected = "\"the box \"({head=1.0, other=0.0, tail=0.0}, " +
+      "\"the box\"({head=0.0, other=0.0, tail=1.0}, {head=0.0, other=1.0, tail=0.0}))";
+    Assert.assertEquals(expected, describeTree(new ClassificationTree().categorizationTree(categories, 3)));
+    ByteArrayOutputStream log = new ByteArrayOutputStream();
+    ClassificationTree verbose = new ClassificationTree().setVerbose(new PrintStream(log));
+    Assert.assertEquals(expected, describeTree(verbose.categorizationTree(categories, 3)));
+    Assert.assertTrue(log.toString().startsWith("\"the box \" -> "));
+  }
+  
+  /**
+   * Test compiled classifier.
+   */
+  @Test
+  @Category(TestCategories.UnitTest.class)
+  public void testCompiledClassifier() {
+    Random random = new Random(42);
+    String[] animals = {"fox", "dog", "cat", "owl"};
+    String[] weather = {"rain", "snow", "sun", "fog"};
+    Map<String, List<String>> categories = new HashMap<>();
+    categories.put("animal", IntStream.range(0, 40).mapToObj(i -> "the " + animals[random.nextInt(4)] + " " + i).collect(Collectors.toList()));
+    categories.put("weather", IntStream.range(0, 40).mapToObj(i -> "some " + weather[random.nextInt(4)] + " " + i).collect(Collectors.toList()));
+    Function<String, Map<String, Double>> tree = new ClassificationTree().categorizationTree(categories, 3);
+    CompiledClassifier compiled = CompiledClassifier.compile(tree);
+    List<String> inputs = Stream.concat(categories.values().stream().flatMap(List::stream),
+      Stream.of("", "fox", "rain", "the rain", "some fox")).collect(Collectors.toList());
+    List<Map<String, Double>> results = compiled.classifyAll(inputs);
+    for (int i = 0; i < inputs.size(); i++) {
+      Assert.assertEquals(inputs.get(i), tree.apply(inputs.get(i)), results.get(i));
+    }
+  }
+  
   /**
    * Test performance.
    *